@@ -0,0 +1,178 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the adress allocation of the server with different pool sizes
+ * and occupancies. With <code>CONTIGUOUS</code> fragmentation the first
+ * adresses of the pool are leased, which is the worst case for finding the
+ * next free adress. <code>RANDOM</code> leases random adresses, like a
+ * full pool after random leases expired.<br>
+ * <br>
+ * The current engine scans all leases for every candidate adress, so
+ * <code>getNextFreeIp</code> grows quadratically with the pool. A
+ * contiguous /16 at 99% takes about a minute per call, a /12
+ * (<code>-p prefix=12</code>) is only feasible with low occupancy or random
+ * fragmentation.<br>
+ * <br>
+ * <code>poolContains</code> and <code>poolNext</code> measure the
+ * {@link Pool} of a scope on its own, split into ranges of 64 adresses
+ * with the first two adresses of every range excluded.
+ * 
+ * @author sfrankenberger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class AllocationBenchmark {
+	@Param({ "24", "20", "16" })
+	public int prefix;
+	
+	@Param({ "0", "50", "90", "99" })
+	public int occupancy;
+	
+	@Param({ "CONTIGUOUS", "RANDOM" })
+	public String fragmentation;
+	
+	private Server server;
+	
+	/**
+	 * Adresses to check with isIpFree, leased and free ones
+	 */
+	private String[] probes;
+	
+	private int next_probe;
+	
+	/**
+	 * The network of the pool split into many ranges with exclusions
+	 */
+	private Pool ranges;
+	
+	/**
+	 * Adresses to look up in {@link #ranges}
+	 */
+	private int[] pool_probes;
+	
+	@Setup
+	public void setup() throws IOException {
+		int[] pool = Fixtures.pool(prefix);
+		int count = (int) ((long) pool.length * occupancy / 100);
+		
+		Random r = new Random(42);
+		if (fragmentation.equals("RANDOM")) {
+			for (int i = pool.length - 1; i > 0; i--) {
+				int j = r.nextInt(i + 1);
+				int tmp = pool[i];
+				pool[i] = pool[j];
+				pool[j] = tmp;
+			}
+		}
+		
+		server = Fixtures.server(prefix, new MemoryTransport());
+		Fixtures.lease(server, pool, count);
+		
+		probes = new String[1024];
+		pool_probes = new int[probes.length];
+		for (int i = 0; i < probes.length; i++) {
+			probes[i] = Fixtures.ip(pool[r.nextInt(pool.length)]);
+			pool_probes[i] = pool[r.nextInt(pool.length)];
+		}
+		
+		int blocks = Math.max(1, (pool.length + 3) / 64);
+		int[] range = new int[2 * blocks];
+		int[] excluded = new int[2 * blocks];
+		for (int i = 0; i < blocks; i++) {
+			int block = Fixtures.BASE + 64 * i;
+			
+			range[2 * i] = block + 1;
+			range[2 * i + 1] = block + 62;
+			excluded[2 * i] = block + 1;
+			excluded[2 * i + 1] = block + 2;
+		}
+		ranges = new Pool(range, excluded);
+	}
+	
+	/**
+	 * The adress offered to a new client.
+	 */
+	@Benchmark
+	public byte[] getNextFreeIp() {
+		return server.getNextFreeIp(null);
+	}
+	
+	/**
+	 * Checks a random adress of the pool, as done for every DHCPREQUEST of
+	 * an unknown client.
+	 */
+	@Benchmark
+	public boolean isIpFree() {
+		next_probe = (next_probe + 1) & (probes.length - 1);
+		
+		return server.isIpFree(probes[next_probe]);
+	}
+	
+	/**
+	 * Checks whether a random adress belongs to a pool of many ranges.
+	 */
+	@Benchmark
+	public boolean poolContains() {
+		next_probe = (next_probe + 1) & (pool_probes.length - 1);
+		
+		return ranges.contains(pool_probes[next_probe]);
+	}
+	
+	/**
+	 * Finds the next adress of a pool of many ranges behind a random
+	 * adress, skipping excluded adresses and gaps.
+	 */
+	@Benchmark
+	public long poolNext() {
+		next_probe = (next_probe + 1) & (pool_probes.length - 1);
+		
+		return ranges.next(Pool.unsigned(pool_probes[next_probe]));
+	}
+	
+	/**
+	 * One run of the lease timer. All leases are valid, so this is the cost
+	 * paid every second in the steady state.
+	 */
+	@Benchmark
+	public void check() {
+		server.checkLeases();
+	}
+}
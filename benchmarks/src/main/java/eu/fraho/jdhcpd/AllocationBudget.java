@@ -0,0 +1,211 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+
+/**
+ * Checks the bytes the server allocates per exchange against a budget.
+ * Each exchange is sent through the full server path (in-memory
+ * transport, decoding, lease handling, encoding) on the calling thread, the
+ * allocation is measured with
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.<br>
+ * <br>
+ * The budget is read from an ini file (section <code>budget</code>, bytes
+ * per exchange). The tool exits with 1 if an exchange exceeds its budget.
+ * The <code>verify</code> phase of the benchmark module runs it, so the
+ * build fails then. <code>--update</code> writes the measured values plus
+ * 10% headroom into the file instead.
+ * 
+ * @author sfrankenberger
+ */
+public class AllocationBudget {
+	/**
+	 * Iterations to let the jit compile the request path
+	 */
+	private static final int WARMUP = 20000;
+	
+	/**
+	 * Iterations to average the allocation over
+	 */
+	private static final int MEASURE = 10000;
+	
+	/**
+	 * The exchanges which are measured
+	 */
+	private static final String[] EXCHANGES = {
+	    "discover_offer", "request_ack"
+	};
+	
+	private final MemoryTransport transport = new MemoryTransport();
+	private final Server server;
+	private final int server_id;
+	
+	private final com.sun.management.ThreadMXBean threads =
+	    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	
+	/**
+	 * Bytes allocated by the exchanges, indexed like {@link #EXCHANGES}
+	 */
+	private final long[] allocated = new long[EXCHANGES.length];
+	
+	public AllocationBudget() {
+		server = Fixtures.server(24, transport);
+		server_id = Tools.byteToInt(Application.getServerIp());
+	}
+	
+	/**
+	 * Measures the average allocation of each exchange.
+	 * 
+	 * @return bytes per exchange, indexed like {@link #EXCHANGES}
+	 */
+	public long[] measure() {
+		run(WARMUP);
+		
+		for (int i = 0; i < allocated.length; i++) {
+			allocated[i] = 0;
+		}
+		run(MEASURE);
+		
+		long[] back = new long[allocated.length];
+		for (int i = 0; i < back.length; i++) {
+			back[i] = allocated[i] / MEASURE;
+		}
+		
+		return back;
+	}
+	
+	/**
+	 * Runs the given number of clients through DISCOVER / OFFER / REQUEST /
+	 * ACK and releases their lease afterwards, so every client sees the
+	 * same, empty pool.
+	 */
+	private void run(int iterations) {
+		for (int i = 0; i < iterations; i++) {
+			int client = i & 0xFFFF;
+			
+			byte[] offer = send(0, Fixtures.request(DHCPMessage.DHCPDISCOVER, client, i, 0, 0, 0));
+			int ip = Fixtures.getInt(offer, 16);
+			
+			send(1, Fixtures.request(DHCPMessage.DHCPREQUEST, client, i, 0, ip, server_id));
+			send(-1, Fixtures.request(DHCPMessage.DHCPRELEASE, client, i, ip, 0, server_id));
+		}
+	}
+	
+	/**
+	 * Sends a request through the server.
+	 * 
+	 * @param exchange index of the exchange to account the allocation to,
+	 *                 -1 to not measure it
+	 * @param request the encoded request
+	 * @return the reply or <code>null</code> if the server did not answer
+	 */
+	private byte[] send(int exchange, byte[] request) {
+		long tid = Thread.currentThread().getId();
+		
+		transport.inject(request);
+		
+		long before = threads.getThreadAllocatedBytes(tid);
+		server.serveOnce();
+		long after = threads.getThreadAllocatedBytes(tid);
+		
+		if (exchange >= 0) {
+			allocated[exchange] += after - before;
+		}
+		
+		try {
+			MemoryTransport.Datagram d = transport.poll(0);
+			
+			if (d == null && exchange >= 0)
+				throw new IllegalStateException("No reply for " + EXCHANGES[exchange]);
+			
+			return d == null ? null : d.getData();
+		}
+		catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Main method of the budget check.
+	 * 
+	 * @param args <code>[--update] [FILE]</code>, the budget file defaults
+	 *             to <code>allocation-budget.ini</code>
+	 */
+	public static void main(String[] args) {
+		boolean update = false;
+		File file = new File("allocation-budget.ini");
+		
+		for (String arg : args) {
+			if (arg.equals("--update")) {
+				update = true;
+			}
+			else {
+				file = new File(arg);
+			}
+		}
+		
+		if (!update && !file.exists()) {
+			System.err.println("Budget file not found: " + file);
+			System.exit(2);
+		}
+		
+		long[] measured = new AllocationBudget().measure();
+		
+		try {
+			IniParser budget = new IniParser(file);
+			boolean exceeded = false;
+			
+			for (int i = 0; i < EXCHANGES.length; i++) {
+				Integer limit = budget.getInt("budget", EXCHANGES[i]);
+				
+				if (update) {
+					budget.set("budget", EXCHANGES[i], String.valueOf(measured[i] * 11 / 10));
+					System.out.println(String.format("%-16s %8d B", EXCHANGES[i], measured[i]));
+				}
+				else if (limit == null) {
+					System.out.println(String.format("%-16s %8d B  (no budget)", EXCHANGES[i],
+					    measured[i]));
+				}
+				else {
+					boolean over = measured[i] > limit;
+					exceeded |= over;
+					
+					System.out.println(String.format("%-16s %8d B  budget %8d B  %s", EXCHANGES[i],
+					    measured[i], limit, over ? "EXCEEDED" : "ok"));
+				}
+			}
+			
+			if (update) {
+				budget.save(file);
+				System.out.println("Budget written to " + file);
+			}
+			
+			System.exit(exceeded ? 1 : 0);
+		}
+		catch (IOException e) {
+			System.err.println(e.getLocalizedMessage());
+			System.exit(2);
+		}
+	}
+}
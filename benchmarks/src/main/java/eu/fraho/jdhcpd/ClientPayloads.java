@@ -0,0 +1,195 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * DISCOVER and REQUEST messages as sent by common client stacks. The
+ * options and their order follow captures of the real clients, so the
+ * benchmarks see realistic sizes and parameter request lists.
+ * 
+ * @author sfrankenberger
+ */
+public class ClientPayloads {
+	/**
+	 * The client stacks
+	 */
+	public enum Client {
+		/**
+		 * Windows 10 / 11
+		 */
+		WINDOWS,
+		
+		/**
+		 * busybox udhcpc, as found on embedded devices
+		 */
+		UDHCPC,
+		
+		/**
+		 * ISC dhclient, as used by many linux distributions
+		 */
+		DHCLIENT,
+		
+		/**
+		 * Apple iOS
+		 */
+		IOS
+	}
+	
+	/**
+	 * Size of the receive buffer of the {@link edu.bucknell.net.JDHCP.DHCPSocket}
+	 */
+	public static final int BUFFER_SIZE = 1500;
+	
+	private static final byte[] SERVER_ID = {
+	    (byte) 192, (byte) 168, 0, 1
+	};
+	
+	private static final byte[] REQUESTED_IP = {
+	    (byte) 192, (byte) 168, 0, 42
+	};
+	
+	/**
+	 * Builds the encoded message of a client.
+	 * 
+	 * @param client the client stack
+	 * @param type {@link DHCPMessage#DHCPDISCOVER} or
+	 *             {@link DHCPMessage#DHCPREQUEST}
+	 * @return the message padded to the size of the socket buffer, the same
+	 *         as the server receives it
+	 */
+	public static byte[] build(Client client, byte type) {
+		byte[] mac = {
+		    0x00, 0x1c, 0x42, 0x5e, 0x11, (byte) (0x10 + client.ordinal())
+		};
+		boolean request = type == DHCPMessage.DHCPREQUEST;
+		
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		option(o, DHCPOptions.OPTION_DHCP_MESSAGE_TYPE, type);
+		
+		switch (client) {
+			case WINDOWS:
+				option(o, DHCPOptions.OPTION_DHCP_CLIENT_IDENTIFIER, clientId(mac));
+				if (request) {
+					option(o, DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED, REQUESTED_IP);
+					option(o, DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER, SERVER_ID);
+				}
+				option(o, DHCPOptions.OPTION_HOSTNAME, "DESKTOP-7QK2M4R".getBytes());
+				if (request) {
+					option(o, 81, concat(new byte[] {
+					    0, 0, 0
+					}, "DESKTOP-7QK2M4R".getBytes()));
+				}
+				option(o, DHCPOptions.OPTION_DHCP_CLASS_IDENTIFIER, "MSFT 5.0".getBytes());
+				option(o, DHCPOptions.OPTION_DHCP_PARAMETER_REQUEST_LIST,
+				    1, 3, 6, 15, 31, 33, 43, 44, 46, 47, 119, 121, 249, 252);
+				break;
+			case UDHCPC:
+				option(o, DHCPOptions.OPTION_DHCP_CLIENT_IDENTIFIER, clientId(mac));
+				if (request) {
+					option(o, DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED, REQUESTED_IP);
+					option(o, DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER, SERVER_ID);
+				}
+				option(o, DHCPOptions.OPTION_DHCP_MAXIMUM_MESSAGE_SIZE, 0x02, 0x40);
+				option(o, DHCPOptions.OPTION_DHCP_PARAMETER_REQUEST_LIST,
+				    1, 3, 6, 12, 15, 28, 42);
+				option(o, DHCPOptions.OPTION_DHCP_CLASS_IDENTIFIER, "udhcp 1.36.1".getBytes());
+				break;
+			case DHCLIENT:
+				if (request) {
+					option(o, DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER, SERVER_ID);
+				}
+				option(o, DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED, REQUESTED_IP);
+				option(o, DHCPOptions.OPTION_HOSTNAME, "debian".getBytes());
+				option(o, DHCPOptions.OPTION_DHCP_PARAMETER_REQUEST_LIST,
+				    1, 28, 2, 3, 15, 6, 119, 12, 44, 47, 26, 121, 42);
+				break;
+			case IOS:
+				option(o, DHCPOptions.OPTION_DHCP_PARAMETER_REQUEST_LIST,
+				    1, 121, 3, 6, 15, 108, 114, 119, 252);
+				option(o, DHCPOptions.OPTION_DHCP_MAXIMUM_MESSAGE_SIZE, 0x05, 0xdc);
+				option(o, DHCPOptions.OPTION_DHCP_CLIENT_IDENTIFIER, clientId(mac));
+				if (request) {
+					option(o, DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED, REQUESTED_IP);
+					option(o, DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER, SERVER_ID);
+				}
+				option(o, DHCPOptions.OPTION_DHCP_IP_LEASE_TIME, 0x00, 0x76, 0xa7, 0x00);
+				option(o, DHCPOptions.OPTION_HOSTNAME, "iPhone".getBytes());
+				break;
+		}
+		
+		o.write(DHCPOptions.OPTION_END);
+		
+		byte[] data = new byte[BUFFER_SIZE];
+		data[0] = DHCPMessage.OP_REQUEST;
+		data[1] = 1; // ethernet
+		data[2] = 6;
+		data[4] = 0x3d; // xid
+		data[5] = 0x1f;
+		data[6] = 0x5a;
+		data[7] = (byte) (0x10 + client.ordinal());
+		if (client == Client.WINDOWS && !request) {
+			data[10] = (byte) 0x80; // broadcast flag
+		}
+		System.arraycopy(mac, 0, data, 28, mac.length);
+		
+		data[236] = 99; // magic cookie
+		data[237] = (byte) 130;
+		data[238] = 83;
+		data[239] = 99;
+		
+		byte[] options = o.toByteArray();
+		System.arraycopy(options, 0, data, 240, options.length);
+		
+		return data;
+	}
+	
+	private static byte[] clientId(byte[] mac) {
+		return concat(new byte[] {
+			1
+		}, mac);
+	}
+	
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] back = new byte[a.length + b.length];
+		System.arraycopy(a, 0, back, 0, a.length);
+		System.arraycopy(b, 0, back, a.length, b.length);
+		
+		return back;
+	}
+	
+	private static void option(ByteArrayOutputStream o, int code, byte... value) {
+		o.write(code);
+		o.write(value.length);
+		o.write(value, 0, value.length);
+	}
+	
+	private static void option(ByteArrayOutputStream o, int code, int... value) {
+		byte[] b = new byte[value.length];
+		for (int i = 0; i < value.length; i++) {
+			b[i] = (byte) value[i];
+		}
+		
+		option(o, code, b);
+	}
+}
@@ -0,0 +1,128 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.DHCPOptions;
+import eu.fraho.jdhcpd.ClientPayloads.Client;
+
+/**
+ * Measures decoding and encoding of dhcp messages and their options with
+ * the messages of different client stacks. Run with <code>-prof gc</code>
+ * to see the bytes allocated per operation.
+ * 
+ * @author sfrankenberger
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({ "WINDOWS", "UDHCPC", "DHCLIENT", "IOS" })
+	public Client client;
+	
+	@Param({ "DISCOVER", "REQUEST" })
+	public String type;
+	
+	/**
+	 * The message as received by the socket
+	 */
+	private byte[] datagram;
+	
+	/**
+	 * The option area of the message, including the magic cookie
+	 */
+	private byte[] options;
+	
+	/**
+	 * The decoded message
+	 */
+	private DHCPMessage message;
+	
+	/**
+	 * The decoded options
+	 */
+	private DHCPOptions decoded_options;
+	
+	@Setup
+	public void setup() {
+		datagram = ClientPayloads.build(client,
+		    type.equals("DISCOVER") ? DHCPMessage.DHCPDISCOVER : DHCPMessage.DHCPREQUEST);
+		
+		options = new byte[312];
+		System.arraycopy(datagram, 236, options, 0, options.length);
+		
+		message = new DHCPMessage();
+		message.internalize(datagram);
+		
+		decoded_options = new DHCPOptions();
+		decoded_options.internalize(options);
+	}
+	
+	@Benchmark
+	public DHCPMessage messageInternalize() {
+		return new DHCPMessage().internalize(datagram);
+	}
+	
+	@Benchmark
+	public byte[] messageExternalize() {
+		return message.externalize();
+	}
+	
+	@Benchmark
+	public DHCPOptions optionsInternalize() {
+		DHCPOptions o = new DHCPOptions();
+		o.internalize(options);
+		
+		return o;
+	}
+	
+	@Benchmark
+	public byte[] optionsExternalize() {
+		return decoded_options.externalize();
+	}
+	
+	/**
+	 * Reads the options the server looks at while answering a request.
+	 */
+	@Benchmark
+	public void getOption(Blackhole bh) {
+		bh.consume(message.getOption(DHCPOptions.OPTION_DHCP_MESSAGE_TYPE));
+		bh.consume(message.getOption(DHCPOptions.OPTION_HOSTNAME));
+		bh.consume(message.getOption(DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED));
+		bh.consume(message.getOption(DHCPOptions.OPTION_DHCP_PARAMETER_REQUEST_LIST));
+	}
+}
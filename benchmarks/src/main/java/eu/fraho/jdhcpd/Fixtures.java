@@ -0,0 +1,265 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * Helpers to set up servers and pools for the benchmarks. The servers use
+ * a config.ini in a temporary directory, so the one of the working
+ * directory is neither read nor written.
+ * 
+ * @author sfrankenberger
+ */
+public class Fixtures {
+	/**
+	 * Network adress of the pools, pools of all sizes start here
+	 */
+	public static final int BASE = (10 << 24);
+	
+	static {
+		// must be set before the Application class reads its config.ini
+		try {
+			File dir = Files.createTempDirectory("jdhcpd-bench").toFile();
+			File config = new File(dir, "config.ini");
+			
+			dir.deleteOnExit();
+			config.deleteOnExit();
+			System.setProperty(Application.CONFIG_PROPERTY, config.getPath());
+		}
+		catch (IOException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	/**
+	 * Creates a server which offers the adresses of the given pool. The
+	 * server gets new settings, which it saves to the temporary config.ini.
+	 * 
+	 * @param prefix length of the network prefix of the pool, e.g. 24
+	 * @param transport the transport the server uses
+	 * @return the server, not yet started
+	 */
+	public static Server server(int prefix, Transport transport) {
+		return server(prefix, 86400, transport, Clock.SYSTEM);
+	}
+	
+	/**
+	 * Creates a server which offers the adresses of the given pool.
+	 * 
+	 * @param prefix length of the network prefix of the pool, e.g. 24
+	 * @param lease_time the lease time to announce in seconds
+	 * @param transport the transport the server uses
+	 * @param clock the clock the server uses for the leases
+	 * @return the server, not yet started
+	 */
+	public static Server server(int prefix, int lease_time, Transport transport, Clock clock) {
+		int size = 1 << (32 - prefix);
+		IniParser settings = new IniParser();
+		
+		settings.set("global", "server_ip", ip(BASE + 1));
+		settings.set("global", "first_ip", ip(BASE + 2));
+		settings.set("global", "last_ip", ip(BASE + size - 2));
+		settings.set("global", "netmask", ip(-1 << (32 - prefix)));
+		settings.set("global", "lease_time", String.valueOf(lease_time));
+		settings.set("global", "renewal_time", String.valueOf(lease_time / 2));
+		settings.set("global", "reload", "false");
+		Application.settings = settings;
+		
+		return new Server(transport, clock);
+	}
+	
+	/**
+	 * Lists the adresses of a pool in the order the server offers them,
+	 * all adresses between the server (the first host adress) and the
+	 * broadcast adress.
+	 * 
+	 * @param prefix length of the network prefix of the pool
+	 * @return the adresses of the pool
+	 */
+	public static int[] pool(int prefix) {
+		int size = 1 << (32 - prefix);
+		int[] pool = new int[size - 3];
+		
+		for (int i = 0; i < pool.length; i++) {
+			pool[i] = BASE + i + 2;
+		}
+		
+		return pool;
+	}
+	
+	/**
+	 * Loads the given adresses as valid leases of generated clients.
+	 * 
+	 * @param server the server to load the leases into
+	 * @param ips the leased adresses
+	 * @param count how many of the adresses are leased
+	 * @throws IOException if the temporary lease file could not be written
+	 */
+	public static void lease(Server server, int[] ips, int count) throws IOException {
+		File f = File.createTempFile("jdhcpd-leases", ".txt");
+		long now = System.currentTimeMillis();
+		
+		try {
+			PrintWriter pw = new PrintWriter(f);
+			for (int i = 0; i < count; i++) {
+				pw.println(mac(i) + "\t" + ip(ips[i]) + "\t" + now);
+			}
+			pw.close();
+			
+			server.loadLeases(f);
+		}
+		finally {
+			f.delete();
+		}
+	}
+	
+	/**
+	 * Builds the encoded request of a generated client.
+	 * 
+	 * @param type the message type, e.g. {@link DHCPMessage#DHCPDISCOVER}
+	 * @param client number of the client, see {@link #mac(int)}
+	 * @param xid the transaction id
+	 * @param ciaddr the current adress of the client, 0 if it has none
+	 * @param requested the requested adress (option 50), 0 to omit it
+	 * @param server_id the server identifier (option 54), 0 to omit it
+	 * @return the encoded request
+	 */
+	public static byte[] request(byte type, int client, int xid, int ciaddr, int requested,
+	    int server_id) {
+		byte[] data = new byte[300];
+		
+		data[0] = DHCPMessage.OP_REQUEST;
+		data[1] = 1; // ethernet
+		data[2] = 6;
+		putInt(data, 4, xid);
+		putInt(data, 12, ciaddr);
+		data[28] = 0x02;
+		putInt(data, 30, client);
+		
+		data[236] = 99; // magic cookie
+		data[237] = (byte) 130;
+		data[238] = 83;
+		data[239] = 99;
+		
+		int pos = 240;
+		data[pos++] = DHCPOptions.OPTION_DHCP_MESSAGE_TYPE;
+		data[pos++] = 1;
+		data[pos++] = type;
+		
+		if (requested != 0) {
+			data[pos++] = DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED;
+			data[pos++] = 4;
+			putInt(data, pos, requested);
+			pos += 4;
+		}
+		
+		if (server_id != 0) {
+			data[pos++] = DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER;
+			data[pos++] = 4;
+			putInt(data, pos, server_id);
+			pos += 4;
+		}
+		
+		data[pos] = (byte) DHCPOptions.OPTION_END;
+		
+		return data;
+	}
+	
+	/**
+	 * Finds an option in an encoded message.
+	 * 
+	 * @param data the encoded message
+	 * @param code the option to find
+	 * @return the offset of the option content or -1 if it is not present
+	 */
+	public static int findOption(byte[] data, int code) {
+		int pos = 240;
+		
+		while (pos + 1 < data.length) {
+			int c = 0xFF & data[pos];
+			
+			if (c == DHCPOptions.OPTION_END)
+				break;
+			if (c == DHCPOptions.OPTION_PAD) {
+				pos++;
+				continue;
+			}
+			if (c == code)
+				return pos + 2;
+			
+			pos += 2 + (0xFF & data[pos + 1]);
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * @param data an encoded message
+	 * @return the message type (option 53) or 0 if it is not present
+	 */
+	public static byte messageType(byte[] data) {
+		int pos = findOption(data, DHCPOptions.OPTION_DHCP_MESSAGE_TYPE);
+		
+		return pos < 0 ? 0 : data[pos];
+	}
+	
+	/**
+	 * Reads a 4 byte value, e.g. an ip adress, from an encoded message.
+	 * 
+	 * @param data the encoded message
+	 * @param pos where the value starts
+	 * @return the value
+	 */
+	public static int getInt(byte[] data, int pos) {
+		return ((0xFF & data[pos]) << 24) | ((0xFF & data[pos + 1]) << 16)
+		    | ((0xFF & data[pos + 2]) << 8) | (0xFF & data[pos + 3]);
+	}
+	
+	private static void putInt(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+	
+	/**
+	 * @param ip an ip adress as int
+	 * @return the dotted representation of the adress
+	 */
+	public static String ip(int ip) {
+		return (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "."
+		    + (ip & 0xFF);
+	}
+	
+	/**
+	 * @param client number of a generated client
+	 * @return the mac adress of the client, as used by the server
+	 */
+	public static String mac(int client) {
+		return String.format("02:00:%02x:%02x:%02x:%02x", client >>> 24, (client >>> 16) & 0xFF,
+		    (client >>> 8) & 0xFF, client & 0xFF);
+	}
+}
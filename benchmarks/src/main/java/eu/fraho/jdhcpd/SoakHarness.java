@@ -0,0 +1,535 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+
+/**
+ * Long running soak test of the lease handling on a virtual clock. A
+ * population of clients comes online, gets a lease, renews it, and goes
+ * offline again, either releasing the lease or silently letting it
+ * expire. Weeks of churn pass in minutes, as the clock jumps from one
+ * client event to the next.<br>
+ * <br>
+ * The requests go through the full server path (transport, decoding,
+ * lease handling, encoding) on the calling thread. The lease timer is not
+ * started, instead the harness runs its check every <code>--check</code>
+ * virtual seconds.<br>
+ * <br>
+ * Checked invariants:
+ * <ul>
+ * <li>no adress is acknowledged to a client while another client holds a
+ * valid lease for it</li>
+ * <li>acknowledged adresses are inside the pool</li>
+ * <li>a renewal of a valid lease is acknowledged with the same adress</li>
+ * <li>the lease table of the server contains no adress twice</li>
+ * </ul>
+ * Once per virtual day the heap after a full gc and the bytes allocated by
+ * the server per request are printed.
+ * 
+ * @author sfrankenberger
+ */
+public class SoakHarness {
+	private static final long SECOND = 1000;
+	private static final long HOUR = 3600 * SECOND;
+	private static final long DAY = 24 * HOUR;
+	
+	/**
+	 * Maximum number of violations printed in detail
+	 */
+	private static final int MAX_REPORTED = 20;
+	
+	private final int clients;
+	private final long lease_time;
+	private final long online_mean;
+	private final long offline_mean;
+	private final int release_percent;
+	private final long check_interval;
+	
+	private final Random random;
+	private final VirtualClock clock;
+	private final MemoryTransport transport = new MemoryTransport();
+	private final Server server;
+	private final int server_id;
+	
+	/**
+	 * First adress of the pool and the number of adresses
+	 */
+	private final int pool_base;
+	private final int pool_size;
+	
+	/**
+	 * State of the clients, indexed by the client number
+	 */
+	private final int[] ip;
+	private final long[] expires;
+	private final long[] offline_at;
+	private final boolean[] online;
+	
+	/**
+	 * Client holding each adress of the pool, -1 if none
+	 */
+	private final int[] owner;
+	
+	/**
+	 * Pending client events, (virtual second << 24) | client
+	 */
+	private final PriorityQueue<Long> events = new PriorityQueue<Long>();
+	
+	private final com.sun.management.ThreadMXBean threads =
+	    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	
+	private final long start;
+	private int xid = 1;
+	
+	private long requests;
+	private long allocated;
+	private long leases_granted;
+	private long renewals;
+	private long releases;
+	private long silent;
+	private long failures;
+	
+	private final Map<String, Long> violations = new HashMap<String, Long>();
+	private int reported;
+	
+	public SoakHarness(int clients, int lease_time, long online_mean, long offline_mean,
+	    int release_percent, long check_interval, long seed) {
+		this.clients = clients;
+		this.lease_time = lease_time * SECOND;
+		this.online_mean = online_mean;
+		this.offline_mean = offline_mean;
+		this.release_percent = release_percent;
+		this.check_interval = check_interval;
+		this.random = new Random(seed);
+		
+		int prefix = 24;
+		while (prefix > 8 && Fixtures.pool(prefix).length < clients + clients / 4) {
+			prefix--;
+		}
+		
+		int[] pool = Fixtures.pool(prefix);
+		pool_base = Fixtures.BASE;
+		pool_size = 1 << (32 - prefix);
+		
+		start = System.currentTimeMillis();
+		clock = new VirtualClock(start);
+		server = Fixtures.server(prefix, lease_time, transport, clock);
+		server_id = Tools.byteToInt(Application.getServerIp());
+		
+		ip = new int[clients];
+		expires = new long[clients];
+		offline_at = new long[clients];
+		online = new boolean[clients];
+		owner = new int[pool_size];
+		Arrays.fill(owner, -1);
+		
+		System.out.println("Soak test with " + clients + " clients, pool of " + pool.length
+		    + " adresses (/" + prefix + "), lease time " + lease_time + "s");
+	}
+	
+	/**
+	 * Runs the simulation for the given virtual time.
+	 * 
+	 * @param duration the virtual time to simulate in ms
+	 * @return <code>true</code> if no invariant was violated
+	 */
+	public boolean run(long duration) {
+		for (int c = 0; c < clients; c++) {
+			schedule(c, exponential(offline_mean) / 4);
+		}
+		
+		long end = start + duration;
+		long next_check = start + check_interval;
+		long next_day = start + DAY;
+		long real_start = System.nanoTime();
+		long day_requests = 0;
+		long day_allocated = 0;
+		long day_real = real_start;
+		long first_heap = -1;
+		long heap = 0;
+		
+		while (!events.isEmpty()) {
+			long event = events.peek();
+			long time = start + (event >>> 24) * SECOND;
+			
+			if (time > end)
+				break;
+			
+			// run the timed tasks which are due before the event
+			while (Math.min(next_check, next_day) <= time) {
+				if (next_check <= next_day) {
+					advanceTo(next_check);
+					server.checkLeases();
+					next_check += check_interval;
+				}
+				else {
+					advanceTo(next_day);
+					checkTable();
+					heap = usedHeap();
+					if (first_heap < 0) {
+						first_heap = heap;
+					}
+					
+					long now = System.nanoTime();
+					long reqs = requests - day_requests;
+					long bytes = allocated - day_allocated;
+					System.out.println(String.format(
+					    "day %3d: %9d requests, %7d online, heap %6.1f MB, %5d B/request,"
+					        + " %7.1f MB/s allocated, %d violations",
+					    (next_day - start) / DAY, requests, countOnline(), heap / 1048576.0,
+					    reqs == 0 ? 0 : bytes / reqs, bytes / 1048576.0 / ((now - day_real) / 1e9),
+					    countViolations()));
+					
+					day_requests = requests;
+					day_allocated = allocated;
+					day_real = now;
+					next_day += DAY;
+				}
+			}
+			
+			events.poll();
+			advanceTo(time);
+			handle((int) (event & 0xFFFFFF));
+		}
+		
+		double seconds = (System.nanoTime() - real_start) / 1e9;
+		
+		System.out.println();
+		System.out.println(String.format("Simulated %.1f days in %.1f s, %d requests (%.0f/s)",
+		    duration / (double) DAY, seconds, requests, requests / seconds));
+		System.out.println("Leases granted: " + leases_granted + ", renewals: " + renewals
+		    + ", releases: " + releases + ", expired silently: " + silent
+		    + ", failed exchanges: " + failures);
+		if (first_heap >= 0) {
+			System.out.println(String.format("Heap after gc: %.1f MB on day 1, %.1f MB at the end",
+			    first_heap / 1048576.0, heap / 1048576.0));
+		}
+		System.out.println(String.format("Allocated by the server: %d B/request",
+		    requests == 0 ? 0 : allocated / requests));
+		System.out.println("Violations: " + (violations.isEmpty() ? "none" : violations));
+		
+		return violations.isEmpty();
+	}
+	
+	/**
+	 * Handles the next event of a client.
+	 */
+	private void handle(int c) {
+		long now = clock.currentTimeMillis();
+		
+		if (!online[c]) {
+			online[c] = true;
+			offline_at[c] = now + exponential(online_mean);
+			
+			if (!acquire(c)) {
+				failures++;
+				online[c] = false;
+				schedule(c, 60 * SECOND);
+				return;
+			}
+		}
+		else if (now >= offline_at[c]) {
+			online[c] = false;
+			
+			if (ip[c] != 0 && random.nextInt(100) < release_percent) {
+				send(Fixtures.request(DHCPMessage.DHCPRELEASE, c, xid++, ip[c], 0, server_id));
+				release(c);
+				releases++;
+			}
+			else if (ip[c] != 0) {
+				silent++;
+			}
+			
+			schedule(c, exponential(offline_mean));
+			return;
+		}
+		else if (!renew(c)) {
+			failures++;
+			online[c] = false;
+			schedule(c, 60 * SECOND);
+			return;
+		}
+		
+		schedule(c, Math.min(lease_time / 2, Math.max(SECOND, offline_at[c] - now)));
+	}
+	
+	/**
+	 * DISCOVER / OFFER / REQUEST / ACK
+	 * 
+	 * @return was an adress acknowledged?
+	 */
+	private boolean acquire(int c) {
+		int id = xid++;
+		
+		byte[] offer = send(Fixtures.request(DHCPMessage.DHCPDISCOVER, c, id, 0, 0, 0));
+		if (offer == null || Fixtures.messageType(offer) != DHCPMessage.DHCPOFFER)
+			return false;
+		
+		int offered = Fixtures.getInt(offer, 16);
+		if (offered == 0)
+			return false;
+		
+		byte[] ack = send(Fixtures.request(DHCPMessage.DHCPREQUEST, c, id, 0, offered, server_id));
+		if (ack == null || Fixtures.messageType(ack) != DHCPMessage.DHCPACK)
+			return false;
+		
+		acknowledged(c, Fixtures.getInt(ack, 16));
+		leases_granted++;
+		
+		return true;
+	}
+	
+	/**
+	 * Renews the lease of a client which is still valid.
+	 * 
+	 * @return was the lease renewed?
+	 */
+	private boolean renew(int c) {
+		boolean valid = ip[c] != 0 && expires[c] > clock.currentTimeMillis();
+		byte[] ack = send(Fixtures.request(DHCPMessage.DHCPREQUEST, c, xid++, ip[c], 0, 0));
+		
+		if (ack == null || Fixtures.messageType(ack) != DHCPMessage.DHCPACK) {
+			if (valid) {
+				violation("renewal of a valid lease not acknowledged", c, ip[c]);
+			}
+			
+			release(c);
+			return false;
+		}
+		
+		int acked = Fixtures.getInt(ack, 16);
+		if (valid && acked != ip[c]) {
+			violation("renewal changed the adress", c, acked);
+		}
+		
+		acknowledged(c, acked);
+		renewals++;
+		
+		return true;
+	}
+	
+	/**
+	 * Records an adress acknowledged to a client and checks that nobody
+	 * else holds it.
+	 */
+	private void acknowledged(int c, int acked) {
+		int index = acked - pool_base;
+		
+		// the network, the server and the broadcast adress are never leased
+		if (index <= 1 || index >= pool_size - 1) {
+			violation("adress outside of the pool", c, acked);
+			return;
+		}
+		
+		int o = owner[index];
+		if (o >= 0 && o != c && ip[o] == acked && expires[o] > clock.currentTimeMillis()) {
+			violation("adress acknowledged twice", c, acked);
+		}
+		
+		if (ip[c] != 0 && ip[c] != acked) {
+			release(c);
+		}
+		
+		owner[index] = c;
+		ip[c] = acked;
+		expires[c] = clock.currentTimeMillis() + lease_time;
+	}
+	
+	private void release(int c) {
+		if (ip[c] != 0 && owner[ip[c] - pool_base] == c) {
+			owner[ip[c] - pool_base] = -1;
+		}
+		
+		ip[c] = 0;
+		expires[c] = 0;
+	}
+	
+	/**
+	 * Sends a request through the server and measures the bytes the server
+	 * allocates for it.
+	 * 
+	 * @return the reply or <code>null</code> if the server did not answer
+	 */
+	private byte[] send(byte[] request) {
+		long tid = Thread.currentThread().getId();
+		
+		transport.inject(request);
+		
+		long before = threads.getThreadAllocatedBytes(tid);
+		server.serveOnce();
+		allocated += threads.getThreadAllocatedBytes(tid) - before;
+		requests++;
+		
+		try {
+			MemoryTransport.Datagram d = transport.poll(0);
+			return d == null ? null : d.getData();
+		}
+		catch (InterruptedException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Checks that no adress appears twice in the lease table of the server.
+	 */
+	private void checkTable() {
+		Map<String, String> seen = new HashMap<String, String>();
+		
+		for (Map.Entry<String, Object> e : server.getTable().entrySet()) {
+			String leased = e.getValue().toString().split(",")[0];
+			String other = seen.put(leased, e.getKey());
+			
+			if (other != null) {
+				violation("adress twice in the lease table (" + other + ", " + e.getKey() + ")", -1,
+				    Tools.byteToInt(Tools.ipToByte(leased)));
+			}
+		}
+	}
+	
+	private void violation(String what, int c, int address) {
+		Long count = violations.get(what);
+		violations.put(what, count == null ? 1 : count + 1);
+		
+		if (reported++ < MAX_REPORTED) {
+			System.out.println(String.format("VIOLATION day %.2f: %s, client %d, adress %s",
+			    (clock.currentTimeMillis() - start) / (double) DAY, what, c, Fixtures.ip(address)));
+		}
+	}
+	
+	private long countViolations() {
+		long back = 0;
+		for (Long v : violations.values()) {
+			back += v;
+		}
+		
+		return back;
+	}
+	
+	private int countOnline() {
+		int back = 0;
+		for (boolean b : online) {
+			if (b)
+				back++;
+		}
+		
+		return back;
+	}
+	
+	private long usedHeap() {
+		System.gc();
+		
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+	
+	private void advanceTo(long time) {
+		long now = clock.currentTimeMillis();
+		
+		if (time > now) {
+			clock.advance(time - now);
+		}
+	}
+	
+	private void schedule(int c, long delay) {
+		long second = (clock.currentTimeMillis() - start + delay) / SECOND;
+		
+		events.add((second << 24) | c);
+	}
+	
+	private long exponential(long mean) {
+		return (long) (-Math.log(1 - random.nextDouble()) * mean);
+	}
+	
+	private static void usage() {
+		System.err.println("Usage: SoakHarness [options]");
+		System.err.println("  --clients N     number of clients, at most 16777215 (default 10000)");
+		System.err.println("  --days N        virtual days to simulate (default 14)");
+		System.err.println("  --lease S       lease time in seconds (default 86400)");
+		System.err.println("  --online H      mean hours a client stays online (default 8)");
+		System.err.println("  --offline H     mean hours a client stays offline (default 16)");
+		System.err.println("  --release P     percent of clients releasing their lease when going");
+		System.err.println("                  offline, the others let it expire (default 50)");
+		System.err.println("  --check S       virtual seconds between two lease checks (default 60)");
+		System.err.println("  --seed N        seed of the random generator (default 1)");
+		System.exit(2);
+	}
+	
+	/**
+	 * Main method of the soak test. Exits with 1 if an invariant was
+	 * violated.
+	 * 
+	 * @param args see {@link #usage()}
+	 */
+	public static void main(String[] args) {
+		int clients = 10000;
+		int days = 14;
+		int lease = 86400;
+		int online = 8;
+		int offline = 16;
+		int release = 50;
+		int check = 60;
+		long seed = 1;
+		
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (i + 1 >= args.length)
+					usage();
+				
+				if (args[i].equals("--clients"))
+					clients = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--days"))
+					days = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--lease"))
+					lease = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--online"))
+					online = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--offline"))
+					offline = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--release"))
+					release = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--check"))
+					check = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--seed"))
+					seed = Long.parseLong(args[++i]);
+				else
+					usage();
+			}
+		}
+		catch (NumberFormatException e) {
+			usage();
+		}
+		
+		if (clients <= 0 || clients >= (1 << 24))
+			usage();
+		
+		SoakHarness h = new SoakHarness(clients, lease, online * HOUR, offline * HOUR, release,
+		    check * SECOND, seed);
+		
+		System.exit(h.run(days * DAY) ? 0 : 1);
+	}
+}
@@ -0,0 +1,60 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * Clock which only moves when it is advanced. Threads sleeping on this
+ * clock wake up when the virtual time passed their deadline.
+ * 
+ * @author sfrankenberger
+ */
+public class VirtualClock implements Clock {
+	private long now;
+	
+	/**
+	 * @param start the initial time in milliseconds since 1970
+	 */
+	public VirtualClock(long start) {
+		now = start;
+	}
+	
+	@Override
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+	
+	/**
+	 * Moves the clock forward.
+	 * 
+	 * @param millis the time to advance in milliseconds
+	 */
+	public synchronized void advance(long millis) {
+		now += millis;
+		notifyAll();
+	}
+	
+	@Override
+	public synchronized void sleep(long millis) throws InterruptedException {
+		long until = now + millis;
+		
+		while (now < until) {
+			wait();
+		}
+	}
+}
@@ -488,7 +488,7 @@ public class DHCPMessage {
 			}
 			
 			options = optionsList.externalize();
-			outStream.write(options, 0, 312);
+			outStream.write(options, 0, options.length);
 		} catch (IOException e) {
 			System.err.println(e);
 		}
@@ -832,6 +832,20 @@ public class DHCPMessage {
 		optionsList.setOption((byte) inOptNum, inOptionData);
 	}
 	
+	/**
+	 * Sets a block of already encoded options, which is copied behind
+	 * the options set by {@link #setOption(int, byte[])} when the
+	 * message is externalized.
+	 * 
+	 * @param block encoded options without magic cookie and end option
+	 */
+	public void setEncodedOptions(byte[] block) {
+		if (optionsList == null) {
+			initialize();
+		}
+		optionsList.setEncodedOptions(block);
+	}
+	
 	/** 
 	 * Returns specified DHCP option that matches the input code. Null is
 	 * returned if option is not set.
@@ -104,6 +104,11 @@ public class DHCPOptions {
 	
 	private Hashtable<Byte, DHCPOptionsEntry> optionsTable = null;
 	
+	/**
+	 * Options which are already encoded, appended as they are
+	 */
+	private byte[] encodedOptions = null;
+	
 	public DHCPOptions() {
 		optionsTable = new Hashtable<Byte, DHCPOptionsEntry>();
 	}
@@ -160,6 +165,18 @@ public class DHCPOptions {
 		optionsTable.put(new Byte(entryCode), opt);
 	}
 	
+	/**
+	 * Sets a block of already encoded options (code, length, value, ...)
+	 * which is copied behind the options of the table when the list is
+	 * externalized. The block is not parsed, so its options are not
+	 * returned by {@link #getOption(byte)}.
+	 * @param block The encoded options without magic cookie and end option,
+	 *        null to remove the block. The array is not copied.
+	 */
+	public void setEncodedOptions(byte block[]) {
+		encodedOptions = block;
+	}
+	
 	/**
 	 * Returns the option value of a specified option code in a byte array
 	 * @param length Length of option content
@@ -198,9 +215,18 @@ public class DHCPOptions {
 	 * Converts a linked options list to a byte array
 	 * @return array representation of optionsTable
 	 */
-	// todo provide overflow return
+	// the array grows beyond 312 bytes if the options don't fit
 	public byte[] externalize() {
-		byte[] options = new byte[312];
+		int size = 4 + 1;
+		Enumeration<DHCPOptionsEntry> e = optionsTable.elements();
+		while (e.hasMoreElements()) {
+			size += 2 + (0xFF & e.nextElement().length);
+		}
+		if (encodedOptions != null) {
+			size += encodedOptions.length;
+		}
+		
+		byte[] options = new byte[Math.max(312, size)];
 		
 		options[0] = (byte) 99; // insert vendor magic cookie
 		options[1] = (byte) 130;
@@ -208,17 +234,22 @@ public class DHCPOptions {
 		options[3] = (byte) 99;
 		
 		int position = 4;
-		Enumeration<DHCPOptionsEntry> e = optionsTable.elements();
+		e = optionsTable.elements();
 		
 		while (e.hasMoreElements()) {
 			DHCPOptionsEntry entry = e.nextElement();
 			options[position++] = entry.code;
 			options[position++] = entry.length;
-			for (int i = 0; i < entry.length; ++i) {
+			for (int i = 0; i < (0xFF & entry.length); ++i) {
 				options[position++] = entry.content[i];
 			}
 		}
 		
+		if (encodedOptions != null) {
+			System.arraycopy(encodedOptions, 0, options, position, encodedOptions.length);
+			position += encodedOptions.length;
+		}
+		
 		options[position] = (byte) 255; // insert end option
 		return options;
 	}
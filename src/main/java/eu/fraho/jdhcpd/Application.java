@@ -22,7 +22,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -44,9 +46,15 @@ public class Application implements Observer {
 	public static final String NAME = "JDHCPD";
 	
 	/**
-	 * Configuration file
+	 * System property naming another configuration file
 	 */
-	public static final File CONFIG = new File("config.ini");
+	public static final String CONFIG_PROPERTY = "jdhcpd.config";
+	
+	/**
+	 * Configuration file, the config.ini of the working directory unless
+	 * {@link #CONFIG_PROPERTY} names another one
+	 */
+	public static final File CONFIG = new File(System.getProperty(CONFIG_PROPERTY, "config.ini"));
 	
 	/**
 	 * The netmask to announce
@@ -84,9 +92,17 @@ public class Application implements Observer {
 	protected static byte[] dns_servers;
 	
 	/**
-	 * Parser for the configuration file
+	 * The settings which can be changed via console
 	 */
-	protected static IniParser settings = null;
+	private static final List<String> SETTINGS = Arrays.asList("netmask", "first_ip",
+	    "last_ip", "lease_time", "renewal_time", "dns_servers");
+	
+	/**
+	 * Parser for the configuration file. The server replaces it when the
+	 * file is reloaded, changes from the console are made while holding
+	 * the lock of this class, so they always go to the current instance.
+	 */
+	protected static volatile IniParser settings = null;
 	
 	/**
 	 * An instance of this application for the singleton pattern.
@@ -169,6 +185,22 @@ public class Application implements Observer {
 		return dns_servers;
 	}
 	
+	/**
+	 * Copies the values of the given configuration into the static fields
+	 * read by the console.
+	 * 
+	 * @param config the configuration used by the server
+	 */
+	static void apply(ServerConfig config) {
+		first_ip = config.getFirstIp();
+		last_ip = config.getLastIp();
+		netmask = config.getNetmask();
+		server_ip = config.getServerIp();
+		lease_time = Tools.intToByte(config.getLeaseTime());
+		renewal_time = Tools.intToByte(config.getRenewalTime());
+		dns_servers = config.getDNSServers();
+	}
+	
 	/**
 	 * Main method used to instantiate the program.
 	 * 
@@ -188,6 +220,7 @@ public class Application implements Observer {
 		
 		s = new Server();
 		s.addObserver(getInstance());
+		s.getEventLog().addListener(getInstance()::writeLog);
 		
 		s.start();
 	}
@@ -217,7 +250,7 @@ public class Application implements Observer {
 	 */
 	protected void close() {
 		s.abort();
-		s.waitTillDone(1000);
+		s.waitTillDone();
 		
 		System.exit(0);
 	}
@@ -336,7 +369,15 @@ public class Application implements Observer {
 		hlp.append("-> Remove an entry from the table of leases.\n");
 		hlp.append("\n");
 		hlp.append("clear:\n");
-		hlp.append("-> Remove all entries from the table of leases.\n");
+		hlp.append("-> Remove all entries from the table of leases and release the declined\n");
+		hlp.append("-> adresses.\n");
+		hlp.append("\n");
+		hlp.append("capture:\n");
+		hlp.append("-> Display the statistics of the packet capture.\n");
+		hlp.append("\n");
+		hlp.append("stats:\n");
+		hlp.append("-> Display the number of offers, acks, rapid commits, retransmissions\n");
+		hlp.append("-> and declined adresses.\n");
 		hlp.append("\n");
 		hlp.append("cls:\n");
 		hlp.append("-> Only with GUI: Clears the displayed log entries.\n");
@@ -413,6 +454,30 @@ public class Application implements Observer {
 			return;
 		}
 		
+		if (line.equals("capture")) {
+			PacketCapture capture = s.getCapture();
+			
+			if (capture == null) {
+				update(null, "Packet capture is disabled.");
+			}
+			else {
+				update(null, "Captured " + capture.getWritten() + " packets into "
+				    + capture.getFile() + ", " + capture.getDropped() + " dropped.");
+			}
+			
+			return;
+		}
+		
+		if (line.equals("stats")) {
+			update(null, "Sent " + s.getOffers() + " offers and " + s.getAcks()
+			    + " acks for requests, " + s.getRapidCommits() + " leases by rapid commit.");
+			update(null, s.getRetransmissions() + " retransmitted requests answered from the cache, "
+			    + s.getPendingOffers() + " pending offers, " + s.getQuarantined()
+			    + " declined adresses in quarantine.");
+			
+			return;
+		}
+		
 		if (line.equals("saveconfig")) {
 			try {
 	      settings.save(CONFIG);
@@ -530,97 +595,96 @@ public class Application implements Observer {
 	}
 	/**
 	 * Sets an option to the given value and prints it on the console.
+	 * The server gets a new configuration snapshot containing the value.
 	 * 
 	 * @param setting The setting to set
 	 * @param value The value to use
 	 */
 	private void set(String setting, String value) {
 		try {
-			if (setting.equals("netmask")) {
-				byte[] data = Tools.ipToByte(value);
-				if (Tools.checkNetmask(data)) {
-					netmask = data;
-					settings.set("global", "netmask", Tools.byteToIp(netmask));
-				}
-				else {
-					update(null, "Invalid netmask: " + value);
-					return;
-				}
+			if (!SETTINGS.contains(setting)) {
+				update(null, "Variable not found.");
+				return;
 			}
 			
-			if (setting.equals("first_ip")) {
-				byte[] data = Tools.ipToByte(value);
-				if (Tools.checkIp(data)) {
-					first_ip = data;
-					settings.set("global", "first_ip", Tools.byteToIp(first_ip));
-				}
-				else {
-					update(null, "Invalid ip: " + value);
+			if (setting.equals("netmask")) {
+				if (!Tools.checkNetmask(Tools.ipToByte(value))) {
+					update(null, "Invalid netmask: " + value);
 					return;
 				}
 			}
 			
-			if (setting.equals("last_ip")) {
-				byte[] data = Tools.ipToByte(value);
-				if (Tools.checkIp(data)) {
-					last_ip = data;
-					settings.set("global", "last_ip", Tools.byteToIp(last_ip));
-				}
-				else {
+			if (setting.equals("first_ip") || setting.equals("last_ip")) {
+				if (!Tools.checkIp(Tools.ipToByte(value))) {
 					update(null, "Invalid ip: " + value);
 					return;
 				}
 			}
 			
-			if (setting.equals("lease_time")) {
-				lease_time = Tools.intToByte(Integer.valueOf(value));
-				settings.set("global", "lease_time", Tools.byteToIp(lease_time));
-			}
-			
-			if (setting.equals("renewal_time")) {
-				renewal_time = Tools.intToByte(Integer.valueOf(value));
-				settings.set("global", "lease_time", Tools.byteToIp(renewal_time));
+			if (setting.equals("lease_time") || setting.equals("renewal_time")) {
+				value = String.valueOf(Integer.valueOf(value));
 			}
 			
 			if (setting.equals("dns_servers")) {
-				String[] dns_servers = value.split(" ");
-				int count = dns_servers.length;
-				for(int i=0; i<dns_servers.length; i++) {
-					byte[] akt = Tools.ipToByte(dns_servers[i]);
-					if(!Tools.checkIp(akt)) {
-						update(null, "Invalid ip: " + dns_servers[i] + ", ignored.");
-						dns_servers[i] = "";
-						count--;
+				StringBuilder valid = new StringBuilder();
+				
+				for (String ip : value.split(" ")) {
+					if (!Tools.checkIp(Tools.ipToByte(ip))) {
+						update(null, "Invalid ip: " + ip + ", ignored.");
+						continue;
 					}
+					
+					if (valid.length() > 0) valid.append(" ");
+					valid.append(ip);
 				}
 				
-				Application.dns_servers = new byte[count * 4];
-				int aktPos = 0;
-				for(int i=0; i< dns_servers.length; i++) {
-					String ip = dns_servers[i];
-					
-					if(ip.length() > 0) {
-						byte[] akt = Tools.ipToByte(ip);
-						
-						System.arraycopy(akt, 0, Application.dns_servers, aktPos*4, 4);
-						aktPos++;
-					}
+				value = valid.toString();
+			}
+			
+			synchronized (Application.class) {
+				String old_value = settings.getString("global", setting);
+				settings.set("global", setting, value);
+				
+				ServerConfig config;
+				try {
+					config = ServerConfig.fromSettings(settings);
+				}
+				catch (IllegalArgumentException e) {
+					settings.set("global", setting, old_value);
+					update(null, e.getMessage());
+					return;
 				}
 				
-				settings.set("global", "dns_servers", get(setting, true));
-				settings.save(CONFIG);
+				apply(config);
+				if (s != null) {
+					s.setConfig(config);
+				}
 				
-				return;
+				get(setting, true);
+				settings.save(CONFIG);
 			}
-			
-			get(setting, true);
-			settings.save(CONFIG);
 		}
 		catch (Exception e) {
 			update(null, e);
 		}
 	}
 	
+	/**
+	 * Prints an already formatted batch of messages from the event log of
+	 * the server.
+	 * 
+	 * @param batch the messages, one per line
+	 */
+	private void writeLog(String batch) {
+		synchronized (System.out) {
+			System.out.println(batch);
+		}
+		
+		if (gui != null) {
+			gui.writeMessage(batch);
+		}
+	}
+	
 	@Override
 	public void update(Observable o, Object arg) {
 		synchronized (System.out) {
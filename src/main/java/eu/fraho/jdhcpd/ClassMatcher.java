@@ -0,0 +1,327 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * Finds the client class of a request by its vendor class identifier
+ * (option 60) and its user class (option 77).<br>
+ * <br>
+ * The patterns of all classes are compiled into one automaton per option
+ * (Aho-Corasick with a complete transition table) when the configuration
+ * is loaded. Classifying a request walks each option once, byte by byte,
+ * without building strings or allocating memory. If more than one rule
+ * matches, an exact match wins over a prefix and a prefix over a
+ * substring, then the longer pattern wins, then the class which comes
+ * first.
+ * 
+ * @author sfrankenberger
+ */
+final class ClassMatcher {
+	/**
+	 * The option holding the user class
+	 */
+	public static final int OPTION_USER_CLASS = 77;
+	
+	/**
+	 * How a pattern has to match the value of the option. Ordered by
+	 * priority, the last one wins.
+	 * 
+	 * @author sfrankenberger
+	 */
+	public enum Kind {
+		/**
+		 * The pattern is found anywhere in the value
+		 */
+		SUBSTRING,
+		
+		/**
+		 * The value starts with the pattern
+		 */
+		PREFIX,
+		
+		/**
+		 * The value equals the pattern
+		 */
+		EXACT;
+	}
+	
+	/**
+	 * A single match rule of a client class.
+	 * 
+	 * @author sfrankenberger
+	 */
+	public static final class Rule {
+		private final int option;
+		private final Kind kind;
+		private final byte[] pattern;
+		
+		/**
+		 * Creates a new rule.
+		 * 
+		 * @param option the option to match, 60 or 77
+		 * @param kind how the pattern has to match
+		 * @param pattern the bytes to look for, not empty
+		 */
+		public Rule(int option, Kind kind, byte[] pattern) {
+			if (pattern.length == 0 || pattern.length > 255)
+				throw new IllegalArgumentException("Invalid pattern length: " + pattern.length);
+			
+			this.option = option;
+			this.kind = kind;
+			this.pattern = pattern.clone();
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Rule))
+				return false;
+			
+			Rule r = (Rule) o;
+			return option == r.option && kind == r.kind && Arrays.equals(pattern, r.pattern);
+		}
+		
+		@Override
+		public int hashCode() {
+			return (31 * option + kind.hashCode()) * 31 + Arrays.hashCode(pattern);
+		}
+	}
+	
+	/**
+	 * The automaton of the patterns of one option.
+	 * 
+	 * @author sfrankenberger
+	 */
+	private static class Automaton {
+		/**
+		 * The next state by state and input byte
+		 */
+		private final int[][] next;
+		
+		/**
+		 * The rules whose pattern ends in a state
+		 */
+		private final int[][] out;
+		
+		/**
+		 * The next state on the failure path which has rules, -1 if none
+		 */
+		private final int[] dict;
+		
+		/**
+		 * Builds the automaton of the given rules.
+		 * 
+		 * @param patterns the patterns by rule, <code>null</code> for rules
+		 *        of the other option
+		 */
+		public Automaton(byte[][] patterns) {
+			List<int[]> trie = new ArrayList<int[]>();
+			List<int[]> ends = new ArrayList<int[]>();
+			trie.add(newState());
+			ends.add(new int[0]);
+			
+			for (int r = 0; r < patterns.length; r++) {
+				if (patterns[r] == null)
+					continue;
+				
+				int state = 0;
+				for (byte b : patterns[r]) {
+					if (trie.get(state)[0xFF & b] < 0) {
+						trie.get(state)[0xFF & b] = trie.size();
+						trie.add(newState());
+						ends.add(new int[0]);
+					}
+					
+					state = trie.get(state)[0xFF & b];
+				}
+				
+				int[] e = Arrays.copyOf(ends.get(state), ends.get(state).length + 1);
+				e[e.length - 1] = r;
+				ends.set(state, e);
+			}
+			
+			next = trie.toArray(new int[trie.size()][]);
+			out = ends.toArray(new int[ends.size()][]);
+			dict = new int[next.length];
+			
+			// breadth first: the failure state of a state is always known
+			// before the state itself, missing transitions follow it
+			int[] fail = new int[next.length];
+			ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+			dict[0] = -1;
+			
+			for (int c = 0; c < 256; c++) {
+				if (next[0][c] < 0) {
+					next[0][c] = 0;
+				}
+				else {
+					fail[next[0][c]] = 0;
+					dict[next[0][c]] = -1;
+					queue.add(next[0][c]);
+				}
+			}
+			
+			while (!queue.isEmpty()) {
+				int state = queue.poll();
+				
+				for (int c = 0; c < 256; c++) {
+					int child = next[state][c];
+					
+					if (child < 0) {
+						next[state][c] = next[fail[state]][c];
+						continue;
+					}
+					
+					int f = next[fail[state]][c];
+					fail[child] = f;
+					dict[child] = out[f].length > 0 ? f : dict[f];
+					queue.add(child);
+				}
+			}
+		}
+		
+		private static int[] newState() {
+			int[] back = new int[256];
+			Arrays.fill(back, -1);
+			
+			return back;
+		}
+	}
+	
+	/**
+	 * The rules of all classes, in the order of the classes
+	 */
+	private final Rule[] rules;
+	
+	/**
+	 * The index of the class of a rule
+	 */
+	private final int[] classes;
+	
+	/**
+	 * The automaton of the vendor class identifier
+	 */
+	private final Automaton vendor;
+	
+	/**
+	 * The automaton of the user class
+	 */
+	private final Automaton user_class;
+	
+	/**
+	 * Compiles the rules of the given classes.
+	 * 
+	 * @param client_classes the classes, the index in this list is returned
+	 *        by {@link #match(byte[], byte[])}
+	 */
+	public ClassMatcher(List<ClientClass> client_classes) {
+		List<Rule> all = new ArrayList<Rule>();
+		List<Integer> owner = new ArrayList<Integer>();
+		
+		for (int i = 0; i < client_classes.size(); i++) {
+			for (Rule r : client_classes.get(i).getRules()) {
+				all.add(r);
+				owner.add(i);
+			}
+		}
+		
+		rules = all.toArray(new Rule[all.size()]);
+		classes = new int[rules.length];
+		byte[][] vendor_patterns = new byte[rules.length][];
+		byte[][] user_patterns = new byte[rules.length][];
+		
+		for (int r = 0; r < rules.length; r++) {
+			classes[r] = owner.get(r);
+			
+			if (rules[r].option == DHCPOptions.OPTION_DHCP_CLASS_IDENTIFIER)
+				vendor_patterns[r] = rules[r].pattern;
+			else
+				user_patterns[r] = rules[r].pattern;
+		}
+		
+		vendor = new Automaton(vendor_patterns);
+		user_class = new Automaton(user_patterns);
+	}
+	
+	/**
+	 * Finds the class of a client.
+	 * 
+	 * @param vendor_class the vendor class identifier, may be
+	 *        <code>null</code>
+	 * @param user_class the user class, may be <code>null</code>
+	 * @return the index of the class or -1 if no rule matches
+	 */
+	public int match(byte[] vendor_class, byte[] user_class) {
+		int best = scan(vendor, vendor_class, -1);
+		best = scan(this.user_class, user_class, best);
+		
+		return best < 0 ? -1 : classes[best];
+	}
+	
+	/**
+	 * Runs the value of an option through an automaton.
+	 * 
+	 * @param a the automaton of the option
+	 * @param value the value of the option, may be <code>null</code>
+	 * @param best the best rule found so far, -1 if none
+	 * @return the best rule found so far
+	 */
+	private int scan(Automaton a, byte[] value, int best) {
+		if (value == null || rules.length == 0)
+			return best;
+		
+		int state = 0;
+		for (int i = 0; i < value.length; i++) {
+			state = a.next[state][0xFF & value[i]];
+			
+			for (int s = a.out[state].length > 0 ? state : a.dict[state]; s >= 0; s = a.dict[s]) {
+				for (int r : a.out[s]) {
+					Rule rule = rules[r];
+					int start = i + 1 - rule.pattern.length;
+					
+					if (rule.kind != Kind.SUBSTRING && start != 0)
+						continue;
+					if (rule.kind == Kind.EXACT && i != value.length - 1)
+						continue;
+					
+					if (best < 0 || better(rule, rules[best]) || (r < best && !better(rules[best], rule)))
+						best = r;
+				}
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * @return does rule <code>a</code> win over rule <code>b</code>?
+	 */
+	private static boolean better(Rule a, Rule b) {
+		if (a.kind != b.kind)
+			return a.kind.ordinal() > b.kind.ordinal();
+		
+		return a.pattern.length > b.pattern.length;
+	}
+}
@@ -0,0 +1,291 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import edu.bucknell.net.JDHCP.DHCPOptions;
+import eu.fraho.jdhcpd.ClassMatcher.Kind;
+import eu.fraho.jdhcpd.ClassMatcher.Rule;
+
+/**
+ * A class of clients, selected by the vendor class identifier or the user
+ * class the client sends. A class has its own options and optionally its
+ * own range of ip adresses. It is configured in a section named
+ * <code>class &lt;name&gt;</code>:
+ * 
+ * <pre>
+ * [class phones]
+ * vendor_prefix=Polycom,Yealink
+ * first_ip=192.168.0.200
+ * last_ip=192.168.0.219
+ * tftp_server=192.168.0.5
+ * </pre>
+ * 
+ * The keys <code>vendor</code>, <code>vendor_prefix</code> and
+ * <code>vendor_substring</code> match option 60, <code>user_class</code>,
+ * <code>user_class_prefix</code> and <code>user_class_substring</code>
+ * option 77, each takes a comma separated list of patterns.
+ * <code>rapid_commit</code> overrides the setting of the network. All other
+ * keys are options as in the <code>options</code> section.
+ * 
+ * @author sfrankenberger
+ */
+public final class ClientClass {
+	/**
+	 * The prefix of the sections defining a class
+	 */
+	public static final String SECTION_PREFIX = "class ";
+	
+	/**
+	 * The keys of a section which are no options
+	 */
+	private static final List<String> KEYS = Arrays.asList("vendor", "vendor_prefix",
+	    "vendor_substring", "user_class", "user_class_prefix", "user_class_substring",
+	    "first_ip", "last_ip", "rapid_commit");
+	
+	/**
+	 * The name of the class
+	 */
+	private final String name;
+	
+	/**
+	 * The rules selecting the clients of this class
+	 */
+	private final List<Rule> rules;
+	
+	/**
+	 * The first IP to offer, <code>null</code> to use the global range
+	 */
+	private final byte[] first_ip;
+	
+	/**
+	 * The last IP to offer, <code>null</code> to use the global range
+	 */
+	private final byte[] last_ip;
+	
+	/**
+	 * The encoded options of this class
+	 */
+	private final byte[] options;
+	
+	/**
+	 * Answer with rapid commit, <code>null</code> to use the setting of the
+	 * network
+	 */
+	private final Boolean rapid_commit;
+	
+	/**
+	 * Creates a new class. The arrays are copied.
+	 * 
+	 * @param name the name of the class
+	 * @param rules the rules selecting the clients
+	 * @param first_ip the first ip adress to offer, <code>null</code> to use
+	 *        the global range
+	 * @param last_ip the last ip adress to offer, <code>null</code> to use
+	 *        the global range
+	 * @param options the encoded options, they replace the global options
+	 *        with the same code
+	 * @param rapid_commit answer with rapid commit, <code>null</code> to use
+	 *        the setting of the network
+	 */
+	public ClientClass(String name, List<Rule> rules, byte[] first_ip, byte[] last_ip,
+	    byte[] options, Boolean rapid_commit) {
+		this.name = name;
+		this.rules = Collections.unmodifiableList(new ArrayList<Rule>(rules));
+		this.first_ip = first_ip == null ? null : first_ip.clone();
+		this.last_ip = last_ip == null ? null : last_ip.clone();
+		this.options = options.clone();
+		this.rapid_commit = rapid_commit;
+	}
+	
+	/**
+	 * Reads all sections named <code>class &lt;name&gt;</code>.
+	 * 
+	 * @param settings the configuration to read
+	 * @return the classes ordered by name
+	 * @throws IllegalArgumentException if a class is invalid, the message
+	 *         describes which one.
+	 */
+	public static List<ClientClass> fromSettings(IniParser settings) {
+		List<ClientClass> back = new ArrayList<ClientClass>();
+		
+		for (String section : settings.getSections()) {
+			if (!section.startsWith(SECTION_PREFIX))
+				continue;
+			
+			String name = section.substring(SECTION_PREFIX.length()).trim();
+			List<Rule> rules = new ArrayList<Rule>();
+			
+			addRules(rules, settings, section, "vendor", DHCPOptions.OPTION_DHCP_CLASS_IDENTIFIER,
+			    Kind.EXACT);
+			addRules(rules, settings, section, "vendor_prefix",
+			    DHCPOptions.OPTION_DHCP_CLASS_IDENTIFIER, Kind.PREFIX);
+			addRules(rules, settings, section, "vendor_substring",
+			    DHCPOptions.OPTION_DHCP_CLASS_IDENTIFIER, Kind.SUBSTRING);
+			addRules(rules, settings, section, "user_class", ClassMatcher.OPTION_USER_CLASS,
+			    Kind.EXACT);
+			addRules(rules, settings, section, "user_class_prefix",
+			    ClassMatcher.OPTION_USER_CLASS, Kind.PREFIX);
+			addRules(rules, settings, section, "user_class_substring",
+			    ClassMatcher.OPTION_USER_CLASS, Kind.SUBSTRING);
+			
+			if (rules.isEmpty())
+				throw new IllegalArgumentException("Class " + name + " has no match rules");
+			
+			String first = settings.getString(section, "first_ip");
+			String last = settings.getString(section, "last_ip");
+			byte[] first_ip = null;
+			byte[] last_ip = null;
+			
+			if (first != null || last != null) {
+				if (first == null || last == null)
+					throw new IllegalArgumentException("Class " + name
+					    + " needs both first_ip and last_ip");
+				
+				first_ip = parseIp(name, first);
+				last_ip = parseIp(name, last);
+				
+				if (Integer.compareUnsigned(Tools.byteToInt(first_ip),
+				    Tools.byteToInt(last_ip)) > 0)
+					throw new IllegalArgumentException("Class " + name
+					    + ": first_ip is behind last_ip");
+			}
+			
+			String rapid_commit = settings.getString(section, "rapid_commit");
+			
+			byte[] options = OptionCatalog.compile(settings, section, KEYS);
+			back.add(new ClientClass(name, rules, first_ip, last_ip, options,
+			    rapid_commit == null ? null : Boolean.valueOf(rapid_commit.trim())));
+		}
+		
+		return back;
+	}
+	
+	private static void addRules(List<Rule> rules, IniParser settings, String section,
+	    String key, int option, Kind kind) {
+		String value = settings.getString(section, key);
+		if (value == null)
+			return;
+		
+		for (String pattern : value.split(",")) {
+			pattern = pattern.trim();
+			
+			if (pattern.length() == 0)
+				continue;
+			
+			try {
+				rules.add(new Rule(option, kind, pattern.getBytes(StandardCharsets.UTF_8)));
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid " + key + " in " + section + ": "
+				    + pattern);
+			}
+		}
+	}
+	
+	private static byte[] parseIp(String name, String value) {
+		byte[] ip;
+		
+		try {
+			ip = OptionCatalog.parseIp(value);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Class " + name + ": invalid ip adress " + value);
+		}
+		
+		if (!Tools.checkIp(ip))
+			throw new IllegalArgumentException("Class " + name + ": invalid ip adress " + value);
+		
+		return ip;
+	}
+	
+	/**
+	 * Creates the scope of this class, using the range, the options and the
+	 * rapid commit setting of the given scope where this class sets none.
+	 * 
+	 * @param base the scope of the network the client is attached to
+	 * @param own_range use the range of this class if it has one?
+	 * @return the scope of this class
+	 */
+	Scope bind(Scope base, boolean own_range) {
+		int[] ranges = base.getRanges();
+		
+		if (own_range && first_ip != null) {
+			ranges = new int[] {
+			    Tools.byteToInt(first_ip), Tools.byteToInt(last_ip)
+			};
+		}
+		
+		return new Scope(name, ranges, base.getExcluded(),
+		    OptionCatalog.merge(base.getOfferOptions().getEncoded(), options),
+		    OptionCatalog.merge(base.getAckOptions().getEncoded(), options),
+		    OptionCatalog.merge(base.getInformOptions().getEncoded(), options),
+		    rapid_commit == null ? base.isRapidCommit() : rapid_commit);
+	}
+	
+	/**
+	 * @return the first ip adress of the range of this class,
+	 *         <code>null</code> if it shares the range of the network
+	 */
+	byte[] getFirstIp() {
+		return first_ip == null ? null : first_ip.clone();
+	}
+	
+	/**
+	 * @return the name of the class
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return the rules selecting the clients of this class
+	 */
+	public List<Rule> getRules() {
+		return rules;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ClientClass))
+			return false;
+		
+		ClientClass c = (ClientClass) o;
+		return name.equals(c.name) && rules.equals(c.rules)
+		    && Arrays.equals(first_ip, c.first_ip) && Arrays.equals(last_ip, c.last_ip)
+		    && Arrays.equals(options, c.options)
+		    && Objects.equals(rapid_commit, c.rapid_commit);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * name.hashCode() + rules.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,56 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * Source of the time used for the leases. The server uses the system
+ * clock, tests and the soak harness can use a virtual clock to let days
+ * of lease churn pass in minutes.
+ * 
+ * @author sfrankenberger
+ */
+public interface Clock {
+	/**
+	 * The system clock
+	 */
+	public static final Clock SYSTEM = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+		
+		@Override
+		public void sleep(long millis) throws InterruptedException {
+			Thread.sleep(millis);
+		}
+	};
+	
+	/**
+	 * @return the current time in milliseconds since 1970
+	 */
+	public long currentTimeMillis();
+	
+	/**
+	 * Waits until the given time has passed on this clock.
+	 * 
+	 * @param millis the time to wait in milliseconds
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public void sleep(long millis) throws InterruptedException;
+}
@@ -0,0 +1,179 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import eu.fraho.jdhcpd.EventLog.Level;
+
+/**
+ * Watches the configuration file and the reservations and hands the
+ * configuration to the server whenever one of them was changed, so the
+ * range, the options and the lease times can be changed without a
+ * restart.<br>
+ * <br>
+ * The file is parsed and validated on this thread, the server only swaps
+ * its configuration snapshot. Editors often write a file in several steps,
+ * so the file is read once no more events arrived for a short time. An
+ * invalid file is reported and the current configuration is kept.
+ * 
+ * @author sfrankenberger
+ */
+public class ConfigWatcher extends MyThread {
+	/**
+	 * How long to wait for further events before the file is read
+	 */
+	private static final long SETTLE_TIME = 250;
+	
+	/**
+	 * The names of the files to watch
+	 */
+	private final Set<String> names = new HashSet<String>();
+	
+	/**
+	 * The directories the files are in
+	 */
+	private final Set<Path> directories = new HashSet<Path>();
+	
+	/**
+	 * The configuration file
+	 */
+	private final File file;
+	
+	/**
+	 * The server to reconfigure
+	 */
+	private final Server server;
+	
+	/**
+	 * Log to report the reloads and errors to
+	 */
+	private final EventLog log;
+	
+	/**
+	 * Creates a new watcher. It has to be started to watch the files.
+	 * 
+	 * @param server the server to reconfigure
+	 * @param log the log to report to
+	 * @param file the configuration file
+	 * @param others further files read by the configuration (e.g. the
+	 *        reservations), <code>null</code> entries are ignored
+	 */
+	public ConfigWatcher(Server server, EventLog log, File file, File... others) {
+		this.file = file.getAbsoluteFile();
+		this.server = server;
+		this.log = log;
+		
+		watch(this.file);
+		for (File f : others) {
+			if (f != null)
+				watch(f.getAbsoluteFile());
+		}
+		
+		setName("Config_Watcher");
+	}
+	
+	private void watch(File f) {
+		names.add(f.getParentFile().toPath().resolve(f.getName()).toString());
+		directories.add(f.getParentFile().toPath());
+	}
+	
+	/**
+	 * Checks whether the given key has events for the watched files. All
+	 * events of the key are consumed.
+	 * 
+	 * @param key the key of the directory
+	 * @return was a watched file changed?
+	 */
+	private boolean isChanged(WatchKey key) {
+		boolean changed = false;
+		Path dir = (Path) key.watchable();
+		
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW
+			    || names.contains(dir.resolve((Path) event.context()).toString())) {
+				changed = true;
+			}
+		}
+		
+		key.reset();
+		return changed;
+	}
+	
+	/**
+	 * Parses the file and passes it to the server.
+	 */
+	private void reload() {
+		if (!file.isFile())
+			return;
+		
+		try {
+			if (server.reload(new IniParser(file))) {
+				log.text(Level.INFO, "Configuration reloaded from " + file);
+			}
+		}
+		catch (IllegalArgumentException e) {
+			log.text(Level.ERROR, "Invalid configuration file, keeping the current settings: "
+			    + e.getMessage());
+		}
+		catch (IOException e) {
+			log.error(e);
+		}
+	}
+	
+	@Override
+	public void run() {
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			for (Path dir : directories) {
+				dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				    StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+			
+			while (doContinueWork()) {
+				WatchKey key = watcher.poll(100, TimeUnit.MILLISECONDS);
+				
+				if (key == null || !isChanged(key))
+					continue;
+				
+				// wait until the editor has finished writing
+				while ((key = watcher.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null) {
+					isChanged(key);
+				}
+				
+				reload();
+			}
+		}
+		catch (IOException e) {
+			log.error(e);
+		}
+		catch (InterruptedException e) {
+			abort();
+		}
+	}
+}
@@ -0,0 +1,710 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * Asynchronous log of the server. The threads serving the clients only
+ * copy a few fields into a preallocated slot of a lock-free ring buffer,
+ * a background thread formats the events and hands them over to the
+ * listeners in batches. {@link MyThread} only runs the writer thread, the
+ * deprecated {@link java.util.Observable} is not used for the batches.<br>
+ * <br>
+ * If the ring buffer is full the event is dropped and counted, the
+ * publishing thread never blocks.<br>
+ * <br>
+ * Every event belongs to a {@link Category} with a {@link Level}. Events
+ * below the configured level are discarded before anything is copied,
+ * and each category can be sampled (e.g. only every 1000th ACK is
+ * logged). Discarded events don't allocate anything.
+ * 
+ * @author sfrankenberger
+ */
+public class EventLog extends MyThread {
+	/**
+	 * Severity of an event.
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+	
+	/**
+	 * The categories of events which can be filtered and sampled
+	 * independently. The name in lower case is used in the configuration.
+	 */
+	public enum Category {
+		DISCOVER(Level.INFO),
+		OFFER(Level.INFO),
+		REQUEST(Level.INFO),
+		DECLINE(Level.WARN),
+		ACK(Level.INFO),
+		NAK(Level.WARN),
+		RELEASE(Level.INFO),
+		INFORM(Level.DEBUG),
+		NO_FREE_IP(Level.WARN),
+		EXPIRED(Level.INFO),
+		UNHANDLED(Level.WARN),
+		SERVER(Level.INFO),
+		ERROR(Level.ERROR);
+		
+		/**
+		 * The level events of this category are logged with by default
+		 */
+		private final Level level;
+		
+		private Category(Level level) {
+			this.level = level;
+		}
+	}
+	
+	/**
+	 * A free text message, see {@link #text(String)}
+	 */
+	public static final int EVENT_TEXT = 0x100;
+	
+	/**
+	 * An exception, see {@link #error(Throwable)}
+	 */
+	public static final int EVENT_ERROR = 0x101;
+	
+	/**
+	 * A lease expired, see {@link #lease(int, byte[])}
+	 */
+	public static final int EVENT_EXPIRED = 0x102;
+	
+	/**
+	 * No ip adress left for a client, see {@link #client(int, byte[], byte[])}
+	 */
+	public static final int EVENT_NO_FREE_IP = 0x103;
+	
+	/**
+	 * A packet with an unknown message type was received
+	 */
+	public static final int EVENT_UNHANDLED = 0x104;
+	
+	/**
+	 * Default number of slots in the ring buffer
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	/**
+	 * Maximum number of bytes of a hostname which are logged
+	 */
+	private static final int MAX_HOSTNAME = 64;
+	
+	/**
+	 * Maximum number of events formatted into one batch
+	 */
+	private static final int MAX_BATCH = 256;
+	
+	/**
+	 * How long the writer sleeps if there is nothing to do (ms)
+	 */
+	private static final int IDLE_SLEEP = 10;
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	/**
+	 * Size of the ring buffer minus one, used to map sequences to slots
+	 */
+	private final int mask;
+	
+	/**
+	 * Next sequence to claim by a publisher
+	 */
+	private final AtomicLong head = new AtomicLong();
+	
+	/**
+	 * Next sequence the writer will read. Everything below is free again.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	
+	/**
+	 * Sequence which was last published into each slot
+	 */
+	private final AtomicLongArray published;
+	
+	/**
+	 * Number of events which were dropped because the buffer was full
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+	
+	// the slots, one entry per event
+	private final int[] types;
+	private final long[] times;
+	private final long[] macs;
+	private final int[] ips;
+	private final byte[][] data;
+	private final int[] data_lengths;
+	private final Object[] objects;
+	
+	/**
+	 * Formats the timestamps, only used by the writer thread
+	 */
+	private final SimpleDateFormat formater = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	
+	/**
+	 * Minimum level of events to log
+	 */
+	private volatile Level threshold = Level.INFO;
+	
+	/**
+	 * Level of each category, indexed by the ordinal
+	 */
+	private final Level[] levels;
+	
+	/**
+	 * Log only every n-th event of a category, indexed by the ordinal
+	 */
+	private final int[] sample_rates;
+	
+	/**
+	 * Number of events seen per category, used for sampling
+	 */
+	private final AtomicLongArray sample_counters;
+	
+	/**
+	 * The second the cached timestamp belongs to
+	 */
+	private long cached_second = -1;
+	
+	/**
+	 * The formatted timestamp of {@link #cached_second}
+	 */
+	private String cached_timestamp;
+	
+	/**
+	 * The listeners receiving the formatted batches
+	 */
+	private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<Consumer<String>>();
+	
+	/**
+	 * Creates a new log with {@link #DEFAULT_CAPACITY} slots.
+	 */
+	public EventLog() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates a new log.
+	 * 
+	 * @param capacity the number of slots, rounded up to a power of two
+	 */
+	public EventLog(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		
+		mask = size - 1;
+		published = new AtomicLongArray(size);
+		types = new int[size];
+		times = new long[size];
+		macs = new long[size];
+		ips = new int[size];
+		data = new byte[size][MAX_HOSTNAME];
+		data_lengths = new int[size];
+		objects = new Object[size];
+		
+		for (int i = 0; i < size; i++)
+			published.set(i, -1);
+		
+		Category[] categories = Category.values();
+		levels = new Level[categories.length];
+		sample_rates = new int[categories.length];
+		sample_counters = new AtomicLongArray(categories.length);
+		
+		for (Category c : categories) {
+			levels[c.ordinal()] = c.level;
+			sample_rates[c.ordinal()] = 1;
+		}
+		
+		setName("Event_Log");
+	}
+	
+	/**
+	 * Adds a listener which receives the formatted events. It is called by
+	 * the writer thread with a batch of lines separated by newlines.
+	 * 
+	 * @param listener the listener to add
+	 */
+	public void addListener(Consumer<String> listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Removes a listener added by {@link #addListener(Consumer)}.
+	 * 
+	 * @param listener the listener to remove
+	 */
+	public void removeListener(Consumer<String> listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Reads the settings of the log from the <code>log</code> section:
+	 * <code>level</code> is the minimum level to log,
+	 * <code>level_&lt;category&gt;</code> changes the level of a category and
+	 * <code>sample_&lt;category&gt;</code> logs only every n-th event of a
+	 * category.
+	 * 
+	 * @param settings the configuration to read
+	 */
+	public void configure(IniParser settings) {
+		threshold = parseLevel(settings.getString("log", "level", "info"), Level.INFO);
+		
+		for (Category c : Category.values()) {
+			String name = c.name().toLowerCase();
+			
+			String level = settings.getString("log", "level_" + name);
+			levels[c.ordinal()] = level == null ? c.level : parseLevel(level, c.level);
+			
+			Integer rate = settings.getInt("log", "sample_" + name);
+			sample_rates[c.ordinal()] = rate == null || rate < 1 ? 1 : rate;
+		}
+	}
+	
+	/**
+	 * Helper method to parse a level.
+	 * 
+	 * @param level the name of the level
+	 * @param default_level returned if the name is unknown
+	 * @return the level
+	 */
+	private Level parseLevel(String level, Level default_level) {
+		try {
+			return Level.valueOf(level.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			text(Level.WARN, "Unknown log level: " + level);
+			return default_level;
+		}
+	}
+	
+	/**
+	 * Checks whether messages with the given level are logged at all.
+	 * Should be used to guard the creation of expensive messages.
+	 * 
+	 * @param level the level of the message
+	 * @return is the level enabled?
+	 */
+	public boolean isEnabled(Level level) {
+		return level.ordinal() >= threshold.ordinal();
+	}
+	
+	/**
+	 * Decides whether the next event of the given category is logged. Counts
+	 * the event for the sampling of the category.
+	 * 
+	 * @param c the category of the event
+	 * @return should the event be logged?
+	 */
+	public boolean isLoggable(Category c) {
+		int i = c.ordinal();
+		
+		if (levels[i].ordinal() < threshold.ordinal())
+			return false;
+		
+		int rate = sample_rates[i];
+		return rate == 1 || sample_counters.getAndIncrement(i) % rate == 0;
+	}
+	
+	/**
+	 * Logs a message received from a client.
+	 * 
+	 * @param type the message type or {@link #EVENT_NO_FREE_IP}
+	 * @param chaddr the hardware adress of the client
+	 * @param hostname the hostname option sent by the client, may be
+	 *                 <code>null</code>
+	 */
+	public void client(int type, byte[] chaddr, byte[] hostname) {
+		if (!isLoggable(category(type)))
+			return;
+		
+		publish(type, chaddr, null, hostname, null);
+	}
+	
+	/**
+	 * Logs a request received from a client. The hostname option is only
+	 * looked up if the request is logged.
+	 * 
+	 * @param type the message type of the request
+	 * @param m the request
+	 */
+	public void client(int type, DHCPMessage m) {
+		if (!isLoggable(category(type)))
+			return;
+		
+		// udhcpc doesn't send this option, the log handles null
+		publish(type, m.getChaddr(), null, m.getOption(DHCPOptions.OPTION_HOSTNAME), null);
+	}
+	
+	/**
+	 * Logs a reply sent to a client.
+	 * 
+	 * @param type the message type of the reply
+	 * @param chaddr the hardware adress of the client
+	 * @param ip the ip adress offered / acknowledged, may be <code>null</code>
+	 */
+	public void reply(int type, byte[] chaddr, byte[] ip) {
+		if (!isLoggable(category(type)))
+			return;
+		
+		publish(type, chaddr, ip, null, null);
+	}
+	
+	/**
+	 * Logs an event concerning a lease.
+	 * 
+	 * @param type the event, e.g. {@link #EVENT_EXPIRED}
+	 * @param ip the leased ip adress
+	 */
+	public void lease(int type, byte[] ip) {
+		if (!isLoggable(category(type)))
+			return;
+		
+		publish(type, null, ip, null, null);
+	}
+	
+	/**
+	 * Logs a received packet with an unknown message type.
+	 * 
+	 * @param chaddr the hardware adress of the client
+	 * @param message_type the unknown message type
+	 */
+	public void unhandled(byte[] chaddr, int message_type) {
+		if (!isLoggable(Category.UNHANDLED))
+			return;
+		
+		publish(EVENT_UNHANDLED, chaddr, Tools.intToByte(message_type), null, null);
+	}
+	
+	/**
+	 * Logs a free text message with level <code>INFO</code>. Should not be
+	 * used for per-packet messages.
+	 * 
+	 * @param m the message
+	 */
+	public void text(String m) {
+		text(Level.INFO, m);
+	}
+	
+	/**
+	 * Logs a free text message. Should not be used for per-packet messages.
+	 * 
+	 * @param level the level of the message
+	 * @param m the message
+	 */
+	public void text(Level level, String m) {
+		if (isEnabled(level))
+			publish(EVENT_TEXT, null, null, null, m);
+	}
+	
+	/**
+	 * Logs a message which is only built if the level is enabled. Note that
+	 * a lambda capturing variables is allocated by the caller, use
+	 * {@link #isEnabled(Level)} as a guard in hot paths.
+	 * 
+	 * @param level the level of the message
+	 * @param m creates the message
+	 */
+	public void text(Level level, Supplier<String> m) {
+		if (isEnabled(level))
+			publish(EVENT_TEXT, null, null, null, m.get());
+	}
+	
+	/**
+	 * Logs an exception.
+	 * 
+	 * @param t the exception
+	 */
+	public void error(Throwable t) {
+		if (isLoggable(Category.ERROR))
+			publish(EVENT_ERROR, null, null, null, t);
+	}
+	
+	/**
+	 * Maps an event type to its category.
+	 * 
+	 * @param type the event type
+	 * @return the category of the event
+	 */
+	private static Category category(int type) {
+		switch (type) {
+			case DHCPMessage.DHCPDISCOVER:
+				return Category.DISCOVER;
+			case DHCPMessage.DHCPOFFER:
+				return Category.OFFER;
+			case DHCPMessage.DHCPREQUEST:
+				return Category.REQUEST;
+			case DHCPMessage.DHCPDECLINE:
+				return Category.DECLINE;
+			case DHCPMessage.DHCPACK:
+				return Category.ACK;
+			case DHCPMessage.DHCPNAK:
+				return Category.NAK;
+			case DHCPMessage.DHCPRELEASE:
+				return Category.RELEASE;
+			case DHCPMessage.DHCPINFORM:
+				return Category.INFORM;
+			case EVENT_NO_FREE_IP:
+				return Category.NO_FREE_IP;
+			case EVENT_EXPIRED:
+				return Category.EXPIRED;
+			case EVENT_UNHANDLED:
+				return Category.UNHANDLED;
+			case EVENT_ERROR:
+				return Category.ERROR;
+			default:
+				return Category.SERVER;
+		}
+	}
+	
+	/**
+	 * @return number of events dropped because the buffer was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Claims a slot in the ring buffer and copies the given fields into it.
+	 */
+	private void publish(int type, byte[] chaddr, byte[] ip, byte[] d, Object o) {
+		long seq;
+		
+		do {
+			seq = head.get();
+			
+			if (seq - tail.get() > mask) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(seq, seq + 1));
+		
+		int slot = (int) seq & mask;
+		types[slot] = type;
+		times[slot] = System.currentTimeMillis();
+		macs[slot] = chaddr == null ? 0 : packMac(chaddr);
+		ips[slot] = ip == null ? 0 : Tools.byteToInt(ip);
+		objects[slot] = o;
+		
+		int len = 0;
+		if (d != null) {
+			len = Math.min(d.length, MAX_HOSTNAME);
+			System.arraycopy(d, 0, data[slot], 0, len);
+		}
+		data_lengths[slot] = len;
+		
+		// publishes the plain writes above to the writer
+		published.set(slot, seq);
+	}
+	
+	/**
+	 * Formats all published events and hands them to the listeners.
+	 * 
+	 * @return the number of events written
+	 */
+	private int drain() {
+		StringBuilder batch = new StringBuilder();
+		long next = tail.get();
+		int count = 0;
+		
+		long lost = dropped.getAndSet(0);
+		if (lost > 0) {
+			appendTimestamp(batch, System.currentTimeMillis());
+			batch.append(lost).append(" log events dropped, log buffer full.");
+		}
+		
+		while (count < MAX_BATCH) {
+			int slot = (int) next & mask;
+			if (published.get(slot) != next)
+				break;
+			
+			if (batch.length() > 0)
+				batch.append('\n');
+			format(batch, slot);
+			objects[slot] = null;
+			
+			next++;
+			count++;
+			tail.set(next);
+		}
+		
+		if (batch.length() > 0) {
+			String lines = batch.toString();
+			
+			for (Consumer<String> listener : listeners) {
+				listener.accept(lines);
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Formats the event in the given slot.
+	 */
+	private void format(StringBuilder sb, int slot) {
+		appendTimestamp(sb, times[slot]);
+		
+		switch (types[slot]) {
+			case DHCPMessage.DHCPDISCOVER:
+				sb.append("DHCPDISCOVER from ");
+				appendClient(sb, slot);
+				break;
+			case DHCPMessage.DHCPREQUEST:
+				sb.append("DHCPREQUEST from ");
+				appendClient(sb, slot);
+				break;
+			case DHCPMessage.DHCPDECLINE:
+				sb.append("DHCPDECLINE from ");
+				appendClient(sb, slot);
+				break;
+			case DHCPMessage.DHCPRELEASE:
+				sb.append("DHCPRELEASE from ");
+				appendClient(sb, slot);
+				break;
+			case DHCPMessage.DHCPINFORM:
+				sb.append("DHCPINFORM from ");
+				appendClient(sb, slot);
+				break;
+			case DHCPMessage.DHCPOFFER:
+				sb.append("DHCPOFFER to ");
+				appendMac(sb, macs[slot]);
+				sb.append(" for IP ");
+				appendIp(sb, ips[slot]);
+				break;
+			case DHCPMessage.DHCPACK:
+				sb.append("DHCPACK to ");
+				appendMac(sb, macs[slot]);
+				sb.append(" for IP ");
+				appendIp(sb, ips[slot]);
+				break;
+			case DHCPMessage.DHCPNAK:
+				sb.append("DHCPNACK to ");
+				appendMac(sb, macs[slot]);
+				break;
+			case EVENT_NO_FREE_IP:
+				sb.append("No more IPs left to serve client ");
+				appendMac(sb, macs[slot]);
+				break;
+			case EVENT_EXPIRED:
+				sb.append("Lease for ");
+				appendIp(sb, ips[slot]);
+				sb.append(" expired.");
+				break;
+			case EVENT_UNHANDLED:
+				sb.append("Received packet is an unhandled case. Message Type: ");
+				sb.append(ips[slot]);
+				break;
+			case EVENT_ERROR:
+				sb.append(((Throwable) objects[slot]).getLocalizedMessage());
+				break;
+			default:
+				sb.append(objects[slot]);
+				return;
+		}
+		
+		int rate = sample_rates[category(types[slot]).ordinal()];
+		if (rate > 1)
+			sb.append(" (sampled 1 in ").append(rate).append(')');
+	}
+	
+	private void appendTimestamp(StringBuilder sb, long time) {
+		long second = time / 1000;
+		
+		if (second != cached_second) {
+			cached_second = second;
+			cached_timestamp = formater.format(new Date(time));
+		}
+		
+		sb.append('[').append(cached_timestamp).append("] ");
+	}
+	
+	private void appendClient(StringBuilder sb, int slot) {
+		appendMac(sb, macs[slot]);
+		
+		int len = data_lengths[slot];
+		if (len > 0) {
+			sb.append(" (");
+			for (int i = 0; i < len; i++) {
+				sb.append((char) (0xFF & data[slot][i]));
+			}
+			sb.append(')');
+		}
+	}
+	
+	private static void appendMac(StringBuilder sb, long mac) {
+		for (int i = 5; i >= 0; i--) {
+			int b = (int) (mac >>> (i * 8)) & 0xFF;
+			
+			sb.append(HEX[b >>> 4]).append(HEX[b & 0xF]);
+			if (i > 0)
+				sb.append(':');
+		}
+	}
+	
+	private static void appendIp(StringBuilder sb, int ip) {
+		sb.append(ip >>> 24).append('.').append((ip >>> 16) & 0xFF).append('.')
+		    .append((ip >>> 8) & 0xFF).append('.').append(ip & 0xFF);
+	}
+	
+	/**
+	 * Packs the first 6 bytes of a hardware adress into a long.
+	 * 
+	 * @param chaddr the hardware adress
+	 * @return the packed adress
+	 */
+	private static long packMac(byte[] chaddr) {
+		long mac = 0;
+		
+		for (int i = 0; i < 6; i++) {
+			mac = (mac << 8) | (0xFF & chaddr[i]);
+		}
+		
+		return mac;
+	}
+	
+	@Override
+	public void run() {
+		while (doContinueWork()) {
+			if (drain() == 0) {
+				try {
+					Thread.sleep(IDLE_SLEEP);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+		
+		// write everything which was published before the abort
+		while (drain() > 0)
+			;
+	}
+}
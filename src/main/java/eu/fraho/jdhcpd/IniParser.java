@@ -19,7 +19,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * Simple class to read and write ini-files.<br>
@@ -105,6 +108,18 @@ public class IniParser {
 			}
 		}
 		
+		/**
+		 * @return the names of the fields of this sector, sorted
+		 */
+		public List<String> getNames() {
+			synchronized (this) {
+				List<String> back = new ArrayList<String>(fields.keySet());
+				Collections.sort(back);
+				
+				return back;
+			}
+		}
+		
 		@Override
 		public String toString() {
 			synchronized (this) {
@@ -236,6 +251,44 @@ public class IniParser {
 		return n;
 	}
 	
+	/**
+	 * Returns the names of all fields of the given section.
+	 * 
+	 * @param section the section to use
+	 * @return the sorted names, empty if the section doesn't exist
+	 */
+	public List<String> getNames(String section) {
+		if (section == null || section == "") {
+			section = UNDEFINED_SECTION;
+		}
+		
+		if (ignore_case) {
+			section = section.toLowerCase();
+		}
+		
+		IniSector s = sectors.get(section);
+		
+		if (s == null) {
+			return new ArrayList<String>();
+		}
+		
+		return s.getNames();
+	}
+	
+	/**
+	 * Returns the names of all sections.
+	 * 
+	 * @return the sorted names of the sections
+	 */
+	public List<String> getSections() {
+		synchronized (sectors) {
+			List<String> back = new ArrayList<String>(sectors.keySet());
+			Collections.sort(back);
+			
+			return back;
+		}
+	}
+	
 	public String getString(String section, String name) {
 		if (section == null || section == "") {
 			section = UNDEFINED_SECTION;
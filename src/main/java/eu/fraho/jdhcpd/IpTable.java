@@ -0,0 +1,204 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * A hash table from ip adresses to values, used to look up adresses
+ * during the allocation. The adresses are kept as int, with open
+ * addressing and linear probing, so a lookup is a single probe sequence
+ * without creating objects. The table is kept at most half full.
+ * 
+ * @author sfrankenberger
+ * @param <V> the type of the values
+ */
+final class IpTable<V> {
+	/**
+	 * The adresses
+	 */
+	private int[] keys = new int[16];
+	
+	/**
+	 * The value of each adress, <code>null</code> for free slots
+	 */
+	private Object[] values = new Object[16];
+	
+	/**
+	 * Number of used slots
+	 */
+	private int count;
+	
+	/**
+	 * @param ip an ip adress
+	 * @param mask the size of the table minus 1
+	 * @return the preferred slot of the adress
+	 */
+	private static int slot(int ip, int mask) {
+		int h = ip * 0x9E3779B9;
+		
+		return (h ^ (h >>> 16)) & mask;
+	}
+	
+	/**
+	 * @param ip an ip adress
+	 * @return the slot of the adress or the free slot where it belongs
+	 */
+	private int find(int ip) {
+		int mask = keys.length - 1;
+		int i = slot(ip, mask);
+		
+		while (values[i] != null && keys[i] != ip) {
+			i = (i + 1) & mask;
+		}
+		
+		return i;
+	}
+	
+	/**
+	 * @param ip an ip adress
+	 * @return the value of the adress or <code>null</code> if it is not
+	 *         in the table
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int ip) {
+		return (V) values[find(ip)];
+	}
+	
+	/**
+	 * Stores the value of an adress, replacing its previous value.
+	 * 
+	 * @param ip an ip adress
+	 * @param value the value, not <code>null</code>
+	 */
+	public void put(int ip, V value) {
+		if (2 * (count + 1) > keys.length) {
+			rebuild(2 * keys.length, null);
+		}
+		
+		int i = find(ip);
+		
+		if (values[i] == null) {
+			count++;
+		}
+		keys[i] = ip;
+		values[i] = value;
+	}
+	
+	/**
+	 * Removes an adress if it still has the given value, i.e. it wasn't
+	 * stored again meanwhile. The following entries of the probe sequence
+	 * are moved up, so no lookup stops at the freed slot too early.
+	 * 
+	 * @param ip an ip adress
+	 * @param value the value to remove
+	 * @return was the adress removed?
+	 */
+	public boolean remove(int ip, V value) {
+		int mask = keys.length - 1;
+		int i = find(ip);
+		
+		if (values[i] != value || value == null)
+			return false;
+		
+		values[i] = null;
+		count--;
+		
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int k = slot(keys[j], mask);
+			
+			// move the entry if its preferred slot is not between the freed
+			// slot and its current one
+			if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Removes all adresses whose value matches.
+	 * 
+	 * @param filter selects the values to remove
+	 * @return the number of removed adresses
+	 */
+	@SuppressWarnings("unchecked")
+	public int removeIf(Predicate<? super V> filter) {
+		int matches = 0;
+		
+		for (Object v : values) {
+			if (v != null && filter.test((V) v)) {
+				matches++;
+			}
+		}
+		
+		if (matches > 0) {
+			rebuild(keys.length, filter);
+		}
+		
+		return matches;
+	}
+	
+	/**
+	 * Copies the entries into new arrays.
+	 * 
+	 * @param size the size of the new arrays, a power of 2
+	 * @param filter selects the values to drop, <code>null</code> to keep
+	 *        all
+	 */
+	@SuppressWarnings("unchecked")
+	private void rebuild(int size, Predicate<? super V> filter) {
+		int[] old_keys = keys;
+		Object[] old_values = values;
+		
+		keys = new int[size];
+		values = new Object[size];
+		count = 0;
+		
+		for (int j = 0; j < old_keys.length; j++) {
+			if (old_values[j] == null || (filter != null && filter.test((V) old_values[j])))
+				continue;
+			
+			int i = find(old_keys[j]);
+			keys[i] = old_keys[j];
+			values[i] = old_values[j];
+			count++;
+		}
+	}
+	
+	/**
+	 * Removes all adresses.
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		count = 0;
+	}
+	
+	/**
+	 * @return the number of adresses in the table
+	 */
+	public int size() {
+		return count;
+	}
+}
@@ -0,0 +1,157 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * Simple histogram to record latencies in nanoseconds. The buckets grow
+ * exponentially with 16 linear sub-buckets each, so the reported
+ * percentiles are at most about 6% too high, independent of the value.
+ * 
+ * @author sfrankenberger
+ */
+public class LatencyHistogram {
+	/**
+	 * Number of linear sub-buckets per power of two
+	 */
+	private static final int SUB_BUCKETS = 16;
+	
+	/**
+	 * Number of recorded values per bucket
+	 */
+	private final long[] counts = new long[64 * SUB_BUCKETS];
+	
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+	
+	/**
+	 * Records a value.
+	 * 
+	 * @param nanos the latency to record, negative values are recorded as 0
+	 */
+	public synchronized void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		
+		counts[index(nanos)]++;
+		count++;
+		sum += nanos;
+		min = Math.min(min, nanos);
+		max = Math.max(max, nanos);
+	}
+	
+	/**
+	 * Adds all values of the given histogram to this one.
+	 * 
+	 * @param other the histogram to add
+	 */
+	public synchronized void add(LatencyHistogram other) {
+		synchronized (other) {
+			for (int i = 0; i < counts.length; i++)
+				counts[i] += other.counts[i];
+			
+			count += other.count;
+			sum += other.sum;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+	}
+	
+	/**
+	 * @return number of recorded values
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+	
+	/**
+	 * @return the largest recorded value
+	 */
+	public synchronized long getMax() {
+		return max;
+	}
+	
+	/**
+	 * @return the average of all recorded values
+	 */
+	public synchronized long getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+	
+	/**
+	 * Returns the value below which the given percentage of the recorded
+	 * values are.
+	 * 
+	 * @param percentile the percentile, e.g. 99.9
+	 * @return the upper bound of the bucket containing the percentile
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+		
+		long wanted = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			
+			if (seen >= Math.max(1, wanted))
+				return Math.min(upperBound(i), max);
+		}
+		
+		return max;
+	}
+	
+	/**
+	 * @return the percentiles in a single line, in microseconds
+	 */
+	public synchronized String summary() {
+		if (count == 0)
+			return "no values";
+		
+		return String.format("min=%.1fus mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus "
+		    + "p99.9=%.1fus max=%.1fus", min / 1000.0, getMean() / 1000.0,
+		    getPercentile(50) / 1000.0, getPercentile(90) / 1000.0, getPercentile(99) / 1000.0,
+		    getPercentile(99.9) / 1000.0, max / 1000.0);
+	}
+	
+	/**
+	 * Maps a value to its bucket.
+	 */
+	private static int index(long v) {
+		if (v < 2 * SUB_BUCKETS)
+			return (int) v;
+		
+		int shift = 63 - Long.numberOfLeadingZeros(v) - 4;
+		return shift * SUB_BUCKETS + (int) (v >>> shift);
+	}
+	
+	/**
+	 * Returns the largest value which is mapped to the given bucket.
+	 */
+	private static long upperBound(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index - shift * SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,560 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.DHCPOptions;
+import edu.bucknell.net.JDHCP.DHCPSocket;
+
+/**
+ * Load generator which simulates many clients with distinct hardware
+ * adresses against a running server, similar to perfdhcp. Every client
+ * does a full DISCOVER / OFFER / REQUEST / ACK exchange and then renews,
+ * releases or declines its lease according to the configured mix.<br>
+ * <br>
+ * The generator binds the client port 68, so it needs the same privileges
+ * as the server. It works over the loopback interface (server_ip=127.0.0.1)
+ * or over a veth pair, with the server bound to one end and the generator
+ * to the other.
+ * 
+ * @author sfrankenberger
+ */
+public class LoadGenerator {
+	/**
+	 * The stages of an exchange which wait for a reply
+	 */
+	private static final int STAGE_DISCOVER = 0;
+	private static final int STAGE_REQUEST = 1;
+	private static final int STAGE_RENEW = 2;
+	
+	private static final String[] STAGE_NAMES = {
+	    "DISCOVER->OFFER", "REQUEST->ACK", "RENEW->ACK"
+	};
+	
+	/**
+	 * The actions a client performs after it got its lease
+	 */
+	private static final int ACTION_RENEW = 0;
+	private static final int ACTION_RELEASE = 1;
+	private static final int ACTION_DECLINE = 2;
+	private static final int ACTION_KEEP = 3;
+	
+	private static final String[] ACTION_NAMES = {
+	    "renew", "release", "decline", "keep"
+	};
+	
+	/**
+	 * Private class holding the state of a simulated client.
+	 * 
+	 * @author sfrankenberger
+	 */
+	private static class Client {
+		private final byte[] mac;
+		private final int action;
+		private int xid;
+		private int stage;
+		private long sent;
+		private long deadline;
+		private byte[] ip;
+		private byte[] server_id;
+		
+		public Client(int number, int action) {
+			this.mac = new byte[] {
+			    0x02, 0x00, (byte) (number >>> 24), (byte) (number >>> 16),
+			    (byte) (number >>> 8), (byte) number
+			};
+			this.action = action;
+		}
+	}
+	
+	private final DHCPSocket socket;
+	
+	private final InetAddress server;
+	
+	private final int clients;
+	
+	private final int concurrency;
+	
+	/**
+	 * New clients started per second, 0 for as fast as possible
+	 */
+	private final int rate;
+	
+	/**
+	 * How long to wait for a reply (ns)
+	 */
+	private final long timeout;
+	
+	/**
+	 * Weights of the actions, indexed by ACTION_*
+	 */
+	private final int[] mix;
+	
+	private final Random random = new Random();
+	
+	/**
+	 * Clients waiting for a reply, by xid. Whoever removes a client from
+	 * this map owns it.
+	 */
+	private final Map<Integer, Client> pending = new ConcurrentHashMap<Integer, Client>();
+	
+	/**
+	 * Number of started clients which did not finish yet
+	 */
+	private final AtomicInteger active = new AtomicInteger();
+	
+	/**
+	 * Latencies by stage, only written by the receiver thread
+	 */
+	private final LatencyHistogram[] latency = {
+	    new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()
+	};
+	
+	private final AtomicLongArray timeouts = new AtomicLongArray(STAGE_NAMES.length);
+	
+	private final AtomicLongArray actions = new AtomicLongArray(ACTION_NAMES.length);
+	
+	private final AtomicInteger leases = new AtomicInteger();
+	
+	private final AtomicInteger naks = new AtomicInteger();
+	
+	private final AtomicInteger no_offer = new AtomicInteger();
+	
+	private final AtomicInteger unexpected = new AtomicInteger();
+	
+	private final AtomicInteger malformed = new AtomicInteger();
+	
+	private final AtomicInteger send_errors = new AtomicInteger();
+	
+	private volatile boolean finished = false;
+	
+	/**
+	 * @param socket the socket bound to the client port
+	 * @param server the adress to send the requests to
+	 * @param clients number of clients to simulate
+	 * @param concurrency maximum number of clients in an exchange
+	 * @param rate new clients per second, 0 for as fast as possible
+	 * @param timeout how long to wait for a reply (ms)
+	 * @param mix weights of the actions after the lease was granted
+	 */
+	public LoadGenerator(DHCPSocket socket, InetAddress server, int clients, int concurrency,
+	    int rate, int timeout, int[] mix) {
+		this.socket = socket;
+		this.server = server;
+		this.clients = clients;
+		this.concurrency = concurrency;
+		this.rate = rate;
+		this.timeout = timeout * 1000000L;
+		this.mix = mix;
+	}
+	
+	/**
+	 * Runs all clients and prints the results.
+	 */
+	public void run() {
+		Thread receiver = new Thread("LoadGenerator_Receiver") {
+			@Override
+			public void run() {
+				while (!finished) {
+					DHCPMessage m = new DHCPMessage();
+					
+					try {
+						if (socket.receive(m))
+							handleReply(m);
+					}
+					catch (RuntimeException e) {
+						// the option parser fails on truncated messages
+						malformed.incrementAndGet();
+					}
+				}
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+		
+		long start = System.nanoTime();
+		long last_report = start;
+		int started = 0;
+		
+		while (started < clients || active.get() > 0) {
+			long now = System.nanoTime();
+			
+			while (started < clients && active.get() < concurrency
+			    && (rate <= 0 || (long) started * 1000000000L / rate <= now - start)) {
+				Client c = new Client(started++, chooseAction());
+				active.incrementAndGet();
+				
+				c.xid = random.nextInt();
+				sendDiscover(c);
+			}
+			
+			checkTimeouts(now);
+			
+			if (now - last_report >= 1000000000L) {
+				last_report = now;
+				System.out.println(String.format("%6.1fs: %d started, %d leases, %d in flight",
+				    (now - start) / 1e9, started, leases.get(), active.get()));
+			}
+			
+			LockSupport.parkNanos(1000000);
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		finished = true;
+		
+		report(elapsed);
+	}
+	
+	private int chooseAction() {
+		int total = 0;
+		for (int w : mix) {
+			total += w;
+		}
+		
+		if (total == 0)
+			return ACTION_KEEP;
+		
+		int r = random.nextInt(total);
+		for (int i = 0; i < mix.length; i++) {
+			if (r < mix[i])
+				return i;
+			
+			r -= mix[i];
+		}
+		
+		return ACTION_KEEP;
+	}
+	
+	/**
+	 * Gives up on all clients whose reply did not arrive in time.
+	 * 
+	 * @param now the current time (System.nanoTime())
+	 */
+	private void checkTimeouts(long now) {
+		Iterator<Client> it = pending.values().iterator();
+		
+		while (it.hasNext()) {
+			Client c = it.next();
+			
+			if (c.deadline - now < 0 && pending.remove(c.xid, c)) {
+				timeouts.incrementAndGet(c.stage);
+				active.decrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Handles a reply of the server, called by the receiver thread.
+	 * 
+	 * @param m the reply
+	 */
+	private void handleReply(DHCPMessage m) {
+		long now = System.nanoTime();
+		Client c = pending.remove(m.getXid());
+		
+		byte[] type = m.getOption(DHCPOptions.OPTION_DHCP_MESSAGE_TYPE);
+		if (c == null || type == null || m.getOp() != DHCPMessage.OP_REPLY) {
+			unexpected.incrementAndGet();
+			return;
+		}
+		
+		latency[c.stage].record(now - c.sent);
+		
+		if (c.stage == STAGE_DISCOVER && type[0] == DHCPMessage.DHCPOFFER) {
+			c.ip = m.getYiaddr();
+			c.server_id = m.getOption(DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER);
+			
+			if (Tools.byteToInt(c.ip) == 0) {
+				// no free adress left
+				no_offer.incrementAndGet();
+				active.decrementAndGet();
+				return;
+			}
+			
+			sendRequest(c);
+		}
+		else if (type[0] == DHCPMessage.DHCPACK && c.stage == STAGE_REQUEST) {
+			leases.incrementAndGet();
+			afterLease(c);
+		}
+		else if (type[0] == DHCPMessage.DHCPACK && c.stage == STAGE_RENEW) {
+			active.decrementAndGet();
+		}
+		else if (type[0] == DHCPMessage.DHCPNAK) {
+			naks.incrementAndGet();
+			active.decrementAndGet();
+		}
+		else {
+			unexpected.incrementAndGet();
+			active.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Performs the action of a client after its lease was granted.
+	 * 
+	 * @param c the client
+	 */
+	private void afterLease(Client c) {
+		actions.incrementAndGet(c.action);
+		
+		switch (c.action) {
+			case ACTION_RENEW:
+				c.xid = random.nextInt();
+				sendRenew(c);
+				return;
+			case ACTION_RELEASE:
+				send(c, message(c, DHCPMessage.DHCPRELEASE, c.ip));
+				break;
+			case ACTION_DECLINE:
+				DHCPMessage m = message(c, DHCPMessage.DHCPDECLINE, c.ip);
+				m.setOption(DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED, c.ip);
+				send(c, m);
+				break;
+		}
+		
+		active.decrementAndGet();
+	}
+	
+	private void sendDiscover(Client c) {
+		await(c, STAGE_DISCOVER, message(c, DHCPMessage.DHCPDISCOVER, null));
+	}
+	
+	private void sendRequest(Client c) {
+		DHCPMessage m = message(c, DHCPMessage.DHCPREQUEST, null);
+		m.setOption(DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED, c.ip);
+		if (c.server_id != null) {
+			m.setOption(DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER, c.server_id);
+		}
+		
+		await(c, STAGE_REQUEST, m);
+	}
+	
+	private void sendRenew(Client c) {
+		// renewed like after a reboot (requested adress instead of ciaddr),
+		// the server would unicast the reply to ciaddr which the generator
+		// doesn't own
+		DHCPMessage m = message(c, DHCPMessage.DHCPREQUEST, null);
+		m.setOption(DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED, c.ip);
+		
+		await(c, STAGE_RENEW, m);
+	}
+	
+	/**
+	 * Sends a message and registers the client as waiting for the reply.
+	 */
+	private void await(Client c, int stage, DHCPMessage m) {
+		c.stage = stage;
+		c.sent = System.nanoTime();
+		c.deadline = c.sent + timeout;
+		pending.put(c.xid, c);
+		
+		if (!send(c, m) && pending.remove(c.xid, c)) {
+			active.decrementAndGet();
+		}
+	}
+	
+	private boolean send(Client c, DHCPMessage m) {
+		byte[] data = m.externalize();
+		
+		try {
+			socket.send(new DatagramPacket(data, data.length, server, DHCPMessage.SERVER_PORT));
+			return true;
+		}
+		catch (IOException e) {
+			send_errors.incrementAndGet();
+			return false;
+		}
+	}
+	
+	private DHCPMessage message(Client c, byte type, byte[] ciaddr) {
+		DHCPMessage m = new DHCPMessage(server, DHCPMessage.SERVER_PORT);
+		
+		m.setOp(DHCPMessage.OP_REQUEST);
+		m.setHtype((byte) 1);
+		m.setHlen((byte) 6);
+		m.setXid(c.xid);
+		if (ciaddr != null) {
+			m.setCiaddr(ciaddr);
+		}
+		
+		byte[] chaddr = new byte[16];
+		System.arraycopy(c.mac, 0, chaddr, 0, c.mac.length);
+		m.setChaddr(chaddr);
+		
+		m.setOption(DHCPOptions.OPTION_DHCP_MESSAGE_TYPE, new byte[] {
+			type
+		});
+		
+		return m;
+	}
+	
+	private void report(long elapsed) {
+		double seconds = elapsed / 1e9;
+		
+		System.out.println();
+		System.out.println(String.format("Clients:    %d in %.3f s", clients, seconds));
+		System.out.println(String.format("Leases:     %d (%.1f leases/s)", leases.get(),
+		    leases.get() / seconds));
+		System.out.println("NAKs:       " + naks.get());
+		System.out.println("No offer:   " + no_offer.get() + " (pool exhausted)");
+		System.out.println("Unexpected: " + unexpected.get() + " replies, " + malformed.get()
+		    + " malformed");
+		System.out.println("Send fails: " + send_errors.get());
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < ACTION_NAMES.length; i++) {
+			sb.append(i == 0 ? "" : ", ").append(ACTION_NAMES[i]).append('=')
+			    .append(actions.get(i));
+		}
+		System.out.println("Actions:    " + sb);
+		
+		System.out.println();
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			System.out.println(String.format("%-16s replies=%d timeouts=%d", STAGE_NAMES[i],
+			    latency[i].getCount(), timeouts.get(i)));
+			System.out.println("                 " + latency[i].summary());
+		}
+	}
+	
+	/**
+	 * Parses a mix like <code>renew=60,release=30,decline=10</code>.
+	 */
+	private static int[] parseMix(String s) {
+		int[] mix = new int[ACTION_NAMES.length];
+		
+		for (String part : s.split(",")) {
+			String[] kv = part.trim().split("=");
+			boolean found = false;
+			
+			for (int i = 0; i < ACTION_NAMES.length; i++) {
+				if (kv.length == 2 && ACTION_NAMES[i].equalsIgnoreCase(kv[0].trim())) {
+					mix[i] = Integer.parseInt(kv[1].trim());
+					found = true;
+				}
+			}
+			
+			if (!found)
+				throw new IllegalArgumentException("Invalid mix: " + part);
+		}
+		
+		return mix;
+	}
+	
+	private static void usage() {
+		System.err.println("Usage: LoadGenerator [options] SERVER_IP");
+		System.err.println("  --clients N       number of simulated clients (default 1000)");
+		System.err.println("  --concurrency N   clients in an exchange at the same time (default 100)");
+		System.err.println("  --rate N          new clients per second, 0 = unlimited (default 0)");
+		System.err.println("  --timeout MS      how long to wait for a reply (default 1000)");
+		System.err.println("  --mix MIX         what clients do after the ACK, weights of renew,");
+		System.err.println("                    release, decline and keep");
+		System.err.println("                    (default renew=60,release=30,decline=10)");
+		System.err.println("  --bind IP         local adress to bind port 68 to (default all)");
+		System.exit(2);
+	}
+	
+	/**
+	 * Main method of the load generator.
+	 * 
+	 * @param args see {@link #usage()}
+	 */
+	public static void main(String[] args) {
+		int clients = 1000;
+		int concurrency = 100;
+		int rate = 0;
+		int timeout = 1000;
+		String mix = "renew=60,release=30,decline=10";
+		String bind = null;
+		String server = null;
+		
+		try {
+			for (int i = 0; i < args.length; i++) {
+				boolean has_value = i + 1 < args.length;
+				
+				if (args[i].equals("--clients") && has_value) {
+					clients = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("--concurrency") && has_value) {
+					concurrency = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("--rate") && has_value) {
+					rate = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("--timeout") && has_value) {
+					timeout = Integer.parseInt(args[++i]);
+				}
+				else if (args[i].equals("--mix") && has_value) {
+					mix = args[++i];
+				}
+				else if (args[i].equals("--bind") && has_value) {
+					bind = args[++i];
+				}
+				else if (server == null && !args[i].startsWith("--")) {
+					server = args[i];
+				}
+				else {
+					usage();
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			usage();
+		}
+		
+		if (server == null)
+			usage();
+		
+		DHCPSocket socket = null;
+		try {
+			socket = bind == null ? new DHCPSocket(DHCPMessage.CLIENT_PORT)
+			    : new DHCPSocket(DHCPMessage.CLIENT_PORT, bind);
+			socket.setBroadcast(true);
+			
+			new LoadGenerator(socket, InetAddress.getByName(server), clients, concurrency, rate,
+			    timeout, parseMix(mix)).run();
+		}
+		catch (IOException e) {
+			System.err.println(e.getLocalizedMessage());
+			System.exit(1);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getLocalizedMessage());
+			System.exit(2);
+		}
+		finally {
+			if (socket != null) {
+				socket.close();
+			}
+		}
+		
+		System.exit(0);
+	}
+}
@@ -0,0 +1,181 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.net.InetAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import eu.fraho.jdhcpd.jfr.DecodeEvent;
+import eu.fraho.jdhcpd.jfr.SendEvent;
+
+/**
+ * Transport which keeps the datagrams in memory. Requests are injected
+ * with {@link #inject(byte[])}, the replies of the server can be taken
+ * with {@link #poll(long)}. Used to replay captured traffic and to drive
+ * the server in benchmarks without binding the privileged port 67.
+ * 
+ * @author sfrankenberger
+ */
+public class MemoryTransport implements Transport {
+	/**
+	 * A datagram sent by the server.
+	 * 
+	 * @author sfrankenberger
+	 */
+	public static class Datagram {
+		private final byte[] data;
+		private final InetAddress address;
+		private final int port;
+		private final long timestamp;
+		
+		private Datagram(byte[] data, int length, InetAddress address, int port) {
+			this.data = new byte[length];
+			this.address = address;
+			this.port = port;
+			this.timestamp = System.nanoTime();
+			
+			System.arraycopy(data, 0, this.data, 0, length);
+		}
+		
+		/**
+		 * @return the content of the datagram
+		 */
+		public byte[] getData() {
+			return data;
+		}
+		
+		/**
+		 * @return the receiver of the datagram
+		 */
+		public InetAddress getAddress() {
+			return address;
+		}
+		
+		/**
+		 * @return the port of the receiver
+		 */
+		public int getPort() {
+			return port;
+		}
+		
+		/**
+		 * @return when the datagram was sent, see {@link System#nanoTime()}
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+	
+	/**
+	 * How long {@link #receive(DHCPMessage)} waits for a request (ms)
+	 */
+	private static final int RECEIVE_TIMEOUT = 1000;
+	
+	/**
+	 * Size of the receive buffer, the same as the default mtu of the
+	 * {@link edu.bucknell.net.JDHCP.DHCPSocket}. Shorter datagrams are
+	 * padded with zeros, as {@link DHCPMessage#internalize(byte[])}
+	 * expects the full option area.
+	 */
+	private static final int BUFFER_SIZE = 1500;
+	
+	/**
+	 * Requests waiting to be handled by the server
+	 */
+	private final BlockingQueue<byte[]> inbound = new LinkedBlockingQueue<byte[]>();
+	
+	/**
+	 * Replies sent by the server
+	 */
+	private final BlockingQueue<Datagram> outbound = new LinkedBlockingQueue<Datagram>();
+	
+	/**
+	 * Hands a request over to the server.
+	 * 
+	 * @param data the encoded request
+	 */
+	public void inject(byte[] data) {
+		inbound.add(data);
+	}
+	
+	/**
+	 * Waits for the next reply of the server.
+	 * 
+	 * @param timeout maximum time to wait in ms
+	 * @return the reply or <code>null</code> if the timeout elapsed
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public Datagram poll(long timeout) throws InterruptedException {
+		return outbound.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return number of requests not yet taken by the server
+	 */
+	public int getPending() {
+		return inbound.size();
+	}
+	
+	@Override
+	public boolean receive(DHCPMessage m) {
+		byte[] data;
+		
+		try {
+			data = inbound.poll(RECEIVE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			return false;
+		}
+		
+		if (data == null)
+			return false;
+		
+		if (data.length < BUFFER_SIZE) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			System.arraycopy(data, 0, buffer, 0, data.length);
+			data = buffer;
+		}
+		
+		DecodeEvent decode = new DecodeEvent();
+		decode.begin();
+		m.internalize(data);
+		decode.complete(m);
+		
+		return true;
+	}
+	
+	@Override
+	public void send(byte[] data, int length, InetAddress address, int port) {
+		SendEvent event = new SendEvent();
+		event.begin();
+		
+		outbound.add(new Datagram(data, length, address, port));
+		
+		event.size = length;
+		event.complete(data, 0, length);
+	}
+	
+	@Override
+	public void close() {
+		inbound.clear();
+	}
+}
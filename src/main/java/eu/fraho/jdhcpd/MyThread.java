@@ -102,15 +102,18 @@ public abstract class MyThread extends Observable implements Runnable {
 		waitTillDone(-1);
 	}
 	
+	/**
+	 * Waits until the thread has finished.
+	 * 
+	 * @param max maximum time to wait in ms, 0 or less waits forever
+	 */
 	public void waitTillDone(int max) {
 		int zeit = 0;
 		
-		if (max == 0)
-			zeit = -1;
-		
-		while (isRunnning() && zeit < max) {
+		while (isRunnning() && (max <= 0 || zeit < max)) {
 			try {
 				Thread.sleep(100);
+				zeit += 100;
 			}
 			catch (InterruptedException e) {
 				setChanged();
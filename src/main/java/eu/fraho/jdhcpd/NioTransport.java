@@ -0,0 +1,172 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import eu.fraho.jdhcpd.jfr.DecodeEvent;
+import eu.fraho.jdhcpd.jfr.ReceiveEvent;
+import eu.fraho.jdhcpd.jfr.SendEvent;
+
+/**
+ * Transport using a non-blocking {@link DatagramChannel}. The receive
+ * buffer is allocated once and reused for every datagram, so receiving
+ * does not create garbage besides the parsed message.
+ * 
+ * @author sfrankenberger
+ */
+public class NioTransport implements Transport {
+	/**
+	 * How long {@link #receive(DHCPMessage)} waits for a request (ms)
+	 */
+	private static final int RECEIVE_TIMEOUT = 1000;
+	
+	/**
+	 * Size of the receive buffer, the same as the default mtu of the
+	 * {@link edu.bucknell.net.JDHCP.DHCPSocket}
+	 */
+	private static final int BUFFER_SIZE = 1500;
+	
+	private final DatagramChannel channel;
+	
+	private final Selector selector;
+	
+	/**
+	 * Buffer the datagrams are received into
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	
+	/**
+	 * The adress the channel is bound to
+	 */
+	private final InetSocketAddress local;
+	
+	/**
+	 * Optional capture of all sent and received datagrams
+	 */
+	private final PacketCapture capture;
+	
+	/**
+	 * Opens a channel bound to the given port and adress.
+	 * 
+	 * @param port the port to bind
+	 * @param address the adress to bind
+	 * @param capture the capture to copy all datagrams to, may be
+	 *                <code>null</code>
+	 * @throws IOException if the channel could not be opened
+	 */
+	public NioTransport(int port, String address, PacketCapture capture) throws IOException {
+		this.capture = capture;
+		
+		channel = DatagramChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+			channel.bind(new InetSocketAddress(InetAddress.getByName(address), port));
+			channel.configureBlocking(false);
+			
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		
+		local = (InetSocketAddress) channel.getLocalAddress();
+	}
+	
+	@Override
+	public synchronized boolean receive(DHCPMessage m) {
+		try {
+			buffer.clear();
+			InetSocketAddress src = (InetSocketAddress) channel.receive(buffer);
+			
+			if (src == null) {
+				selector.selectedKeys().clear();
+				if (selector.select(RECEIVE_TIMEOUT) == 0)
+					return false;
+				
+				src = (InetSocketAddress) channel.receive(buffer);
+				if (src == null)
+					return false;
+			}
+			
+			// read to dispatch, the wait for the datagram is not measured
+			ReceiveEvent received = new ReceiveEvent();
+			received.begin();
+			
+			byte[] data = buffer.array();
+			int length = buffer.position();
+			
+			// the message parser reads the whole option area
+			Arrays.fill(data, length, data.length, (byte) 0);
+			
+			if (capture != null) {
+				capture.inbound(data, 0, length, src.getAddress(), src.getPort(),
+				    local.getAddress(), local.getPort());
+			}
+			
+			DecodeEvent decode = new DecodeEvent();
+			decode.begin();
+			m.internalize(data);
+			decode.complete(m);
+			
+			received.size = length;
+			received.complete(data, 0, length);
+		}
+		catch (IOException e) {
+			return false;
+		}
+		
+		return true;
+	}
+	
+	@Override
+	public void send(byte[] data, int length, InetAddress address, int port) throws IOException {
+		SendEvent event = new SendEvent();
+		event.begin();
+		
+		// the channel is non-blocking, a full send buffer drops the datagram
+		if (channel.send(ByteBuffer.wrap(data, 0, length), new InetSocketAddress(address, port)) == 0)
+			throw new IOException("Send buffer full, datagram to " + address.getHostAddress()
+			    + ":" + port + " dropped");
+		
+		if (capture != null) {
+			capture.outbound(data, 0, length, address, port, local.getAddress(), local.getPort());
+		}
+		
+		event.size = length;
+		event.complete(data, 0, length);
+	}
+	
+	@Override
+	public void close() {
+		Tools.close(selector);
+		Tools.close(channel);
+	}
+}
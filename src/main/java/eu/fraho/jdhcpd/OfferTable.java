@@ -0,0 +1,195 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The adresses offered to clients which didn't request them yet. An offer
+ * holds its adress only for a few seconds: a client which got a
+ * DHCPOFFER sends its DHCPREQUEST right away, only then the adress is
+ * leased. Clients which never come back, e.g. a burst of DHCPDISCOVERs
+ * from changing mac adresses, can't exhaust the pool this way.<br>
+ * <br>
+ * All offers are held for the same time, so they expire in the order
+ * they were made. The expired ones are removed from the head of the
+ * table at once by {@link #expire()}. Whether an adress is offered is
+ * looked up in an {@link IpTable}, so the allocation can check every
+ * candidate without creating objects.
+ * 
+ * @author sfrankenberger
+ */
+final class OfferTable {
+	/**
+	 * One offered adress.
+	 * 
+	 * @author sfrankenberger
+	 */
+	private static final class Offer {
+		private final String mac;
+		private final int ip;
+		private final long expires;
+		
+		public Offer(String mac, int ip, long expires) {
+			this.mac = mac;
+			this.ip = ip;
+			this.expires = expires;
+		}
+	}
+	
+	/**
+	 * The offers by mac adress, oldest first
+	 */
+	private final LinkedHashMap<String, Offer> by_mac = new LinkedHashMap<String, Offer>();
+	
+	/**
+	 * The offers by ip adress
+	 */
+	private final IpTable<Offer> by_ip = new IpTable<Offer>();
+	
+	/**
+	 * How long an offer is held in milliseconds
+	 */
+	private long hold_time;
+	
+	/**
+	 * The clock deciding when an offer expires
+	 */
+	private final Clock clock;
+	
+	/**
+	 * Creates a new table.
+	 * 
+	 * @param hold_time how long an offer is held in milliseconds
+	 * @param clock the clock deciding when an offer expires
+	 */
+	public OfferTable(long hold_time, Clock clock) {
+		this.hold_time = hold_time;
+		this.clock = clock;
+	}
+	
+	/**
+	 * Changes how long the offers are held. Current offers keep their
+	 * expiry time.
+	 * 
+	 * @param hold_time how long an offer is held in milliseconds
+	 */
+	public synchronized void setHoldTime(long hold_time) {
+		this.hold_time = hold_time;
+	}
+	
+	/**
+	 * Offers an adress to a client, replacing its previous offer. The
+	 * offer is held from now on.
+	 * 
+	 * @param mac the mac adress of the client
+	 * @param ip the offered adress
+	 */
+	public synchronized void offer(String mac, byte[] ip) {
+		remove(mac);
+		
+		Offer o = new Offer(mac, Tools.byteToInt(ip), clock.currentTimeMillis() + hold_time);
+		by_mac.put(mac, o);
+		by_ip.put(o.ip, o);
+	}
+	
+	/**
+	 * Returns the adress offered to a client.
+	 * 
+	 * @param mac the mac adress of the client
+	 * @return the offered adress or <code>null</code> if the client has no
+	 *         valid offer
+	 */
+	public synchronized byte[] get(String mac) {
+		Offer o = by_mac.get(mac);
+		
+		if (o == null || o.expires - clock.currentTimeMillis() < 0)
+			return null;
+		
+		return Tools.intToByte(o.ip);
+	}
+	
+	/**
+	 * Checks whether an adress is offered to another client.
+	 * 
+	 * @param ip the adress to check
+	 * @param mac the mac adress of the client asking, <code>null</code> if
+	 *        every offer counts
+	 * @return is the adress held for another client?
+	 */
+	public synchronized boolean isOffered(byte[] ip, String mac) {
+		Offer o = by_ip.get(Tools.byteToInt(ip));
+		
+		return o != null && o.expires - clock.currentTimeMillis() >= 0 && !o.mac.equals(mac);
+	}
+	
+	/**
+	 * Removes the offer of a client, because it got a lease or doesn't
+	 * want the adress.
+	 * 
+	 * @param mac the mac adress of the client
+	 */
+	public synchronized void remove(String mac) {
+		Offer o = by_mac.remove(mac);
+		
+		if (o != null) {
+			by_ip.remove(o.ip, o);
+		}
+	}
+	
+	/**
+	 * Removes all expired offers, their adresses can be offered again.
+	 * 
+	 * @return the number of removed offers
+	 */
+	public synchronized int expire() {
+		long now = clock.currentTimeMillis();
+		Iterator<Offer> it = by_mac.values().iterator();
+		int count = 0;
+		
+		while (it.hasNext()) {
+			Offer o = it.next();
+			if (o.expires - now >= 0)
+				break;
+			
+			it.remove();
+			by_ip.remove(o.ip, o);
+			count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Removes all offers.
+	 */
+	public synchronized void clear() {
+		by_mac.clear();
+		by_ip.clear();
+	}
+	
+	/**
+	 * @return the number of offers, including expired ones which were not
+	 *         removed yet
+	 */
+	public synchronized int size() {
+		return by_mac.size();
+	}
+}
@@ -0,0 +1,410 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * Catalog of the dhcp options which can be configured, with the type of
+ * their values. The options of a scope (the <code>options</code> section
+ * of the config.ini or a host of the reservations) are compiled once into
+ * a block of encoded options, which the replies copy as it is.<br>
+ * <br>
+ * An option is either given by its name (<code>routers=10.0.0.1</code>)
+ * or by its code and type (<code>option_150=ip-list:10.0.0.5</code>).
+ * The types are:
+ * <ul>
+ * <li><code>ip</code>: one ip adress</li>
+ * <li><code>ip-list</code>: ip adresses separated by commas</li>
+ * <li><code>string</code>: text</li>
+ * <li><code>uint8</code>, <code>uint16</code>, <code>uint32</code>:
+ * unsigned numbers</li>
+ * <li><code>bool</code>: true or false</li>
+ * <li><code>raw</code>: hex bytes, optionally separated by colons</li>
+ * </ul>
+ * Values longer than 255 bytes are split into several options of the
+ * same code (RFC 3396).<br>
+ * <br>
+ * The options the server sets itself can't be configured: the lease
+ * time (51), the message type (53), the server identifier (54), the
+ * parameter request list (55), the renewal and rebinding times (58,
+ * 59) and the relay agent information (82).
+ * 
+ * @author sfrankenberger
+ */
+public final class OptionCatalog {
+	/**
+	 * Prefix of options given by code
+	 */
+	public static final String CODE_PREFIX = "option_";
+	
+	/**
+	 * The types of option values.
+	 */
+	public enum Type {
+		IP, IP_LIST, STRING, UINT8, UINT16, UINT32, BOOL, RAW;
+		
+		/**
+		 * Encodes a value of this type.
+		 * 
+		 * @param value the value as written in the configuration
+		 * @return the encoded value
+		 * @throws IllegalArgumentException if the value is invalid
+		 */
+		public byte[] encode(String value) {
+			value = value.trim();
+			
+			switch (this) {
+				case IP:
+					return parseIp(value);
+				case IP_LIST:
+					ByteArrayOutputStream ips = new ByteArrayOutputStream();
+					for (String ip : value.split("[ \t]*,[ \t]*|[ \t]+")) {
+						ips.write(parseIp(ip), 0, 4);
+					}
+					return ips.toByteArray();
+				case STRING:
+					return value.getBytes(StandardCharsets.UTF_8);
+				case UINT8:
+					return unsigned(value, 1);
+				case UINT16:
+					return unsigned(value, 2);
+				case UINT32:
+					return unsigned(value, 4);
+				case BOOL:
+					if (value.equalsIgnoreCase("true") || value.equals("1"))
+						return new byte[] { 1 };
+					if (value.equalsIgnoreCase("false") || value.equals("0"))
+						return new byte[] { 0 };
+					throw new IllegalArgumentException("Invalid bool: " + value);
+				default:
+					String hex = value.replace(":", "");
+					if (hex.length() == 0 || hex.length() % 2 != 0 || !hex.matches("[0-9a-fA-F]+"))
+						throw new IllegalArgumentException("Invalid hex bytes: " + value);
+					
+					byte[] back = new byte[hex.length() / 2];
+					for (int i = 0; i < back.length; i++) {
+						back[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+					}
+					return back;
+			}
+		}
+		
+		/**
+		 * Looks up a type by its name in the configuration.
+		 * 
+		 * @param name the name, e.g. <code>ip-list</code>
+		 * @return the type
+		 * @throws IllegalArgumentException if the type is unknown
+		 */
+		public static Type byName(String name) {
+			try {
+				return valueOf(name.trim().toUpperCase().replace('-', '_'));
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown option type: " + name);
+			}
+		}
+	}
+	
+	/**
+	 * An option of the catalog.
+	 */
+	private static class Entry {
+		private final int code;
+		private final Type type;
+		
+		public Entry(int code, Type type) {
+			this.code = code;
+			this.type = type;
+		}
+	}
+	
+	/**
+	 * The option codes the server sets itself, see the class comment
+	 */
+	private static final int[] SERVER_MANAGED = {
+	    DHCPOptions.OPTION_DHCP_IP_LEASE_TIME, DHCPOptions.OPTION_DHCP_MESSAGE_TYPE,
+	    DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER, DHCPOptions.OPTION_DHCP_PARAMETER_REQUEST_LIST,
+	    DHCPOptions.OPTION_DHCP_RENEWAL_TIME, DHCPOptions.OPTION_DHCP_REBIND_TIME,
+	    Server.OPTION_RELAY_AGENT_INFORMATION
+	};
+	
+	/**
+	 * The known options by name
+	 */
+	private static final HashMap<String, Entry> NAMES = new HashMap<String, Entry>();
+	
+	static {
+		add("netmask", DHCPOptions.OPTION_NETMASK, Type.IP);
+		add("routers", DHCPOptions.OPTION_ROUTERS, Type.IP_LIST);
+		add("time_servers", DHCPOptions.OPTION_TIME_SERVERS, Type.IP_LIST);
+		add("name_servers", DHCPOptions.OPTION_NAME_SERVERS, Type.IP_LIST);
+		add("dns_servers", DHCPOptions.OPTION_DNS_SERVERS, Type.IP_LIST);
+		add("log_servers", DHCPOptions.OPTION_LOG_SERVERS, Type.IP_LIST);
+		add("lpr_servers", DHCPOptions.OPTION_LPR_SERVERS, Type.IP_LIST);
+		add("hostname", DHCPOptions.OPTION_HOSTNAME, Type.STRING);
+		add("domain_name", DHCPOptions.OPTION_DOMAIN_NAME, Type.STRING);
+		add("root_path", DHCPOptions.OPTION_ROOT_PATH, Type.STRING);
+		add("ip_forwarding", DHCPOptions.OPTION_IP_HOST_FORWARDING_ENABLE, Type.BOOL);
+		add("default_ttl", DHCPOptions.OPTION_IP_HOST_DEFAULT_TTL, Type.UINT8);
+		add("mtu", DHCPOptions.OPTION_IP_INTERFACE_MTU, Type.UINT16);
+		add("broadcast_address", DHCPOptions.OPTION_IP_INTERFACE_BROADCAST_ADDRESS, Type.IP);
+		add("static_routes", DHCPOptions.OPTION_IP_INTERFACE_STATIC_ROUTES, Type.IP_LIST);
+		add("arp_cache_timeout", DHCPOptions.OPTION_LINK_ARP_CACHE_TIMEOUT, Type.UINT32);
+		add("tcp_default_ttl", DHCPOptions.OPTION_TCP_DEFAULT_TTL, Type.UINT8);
+		add("nis_domain", DHCPOptions.OPTION_NIS_DOMAIN, Type.STRING);
+		add("nis_servers", DHCPOptions.OPTION_NIS_SERVERS, Type.IP_LIST);
+		add("ntp_servers", DHCPOptions.OPTION_NTP_SERVERS, Type.IP_LIST);
+		add("vendor_specific", DHCPOptions.OPTION_SERVICE_VENDOR_SPECIFIC_INFORMATIONS, Type.RAW);
+		add("netbios_name_servers", DHCPOptions.OPTION_SERVICE_NETBOIS_NAME_SERVERS, Type.IP_LIST);
+		add("netbios_node_type", DHCPOptions.OPTION_SERVICE_NETBOIS_NODE_TYPE, Type.UINT8);
+		add("tftp_server", 66, Type.STRING);
+		add("bootfile_name", 67, Type.STRING);
+		add("domain_search", 119, Type.RAW);
+		add("classless_static_routes", 121, Type.RAW);
+		add("tftp_server_address", 150, Type.IP_LIST);
+	}
+	
+	private static void add(String name, int code, Type type) {
+		NAMES.put(name, new Entry(code, type));
+	}
+	
+	private OptionCatalog() {
+	}
+	
+	/**
+	 * Encodes one configured option including code and length.
+	 * 
+	 * @param name the name of the option or <code>option_&lt;code&gt;</code>
+	 * @param value the value, prefixed by <code>&lt;type&gt;:</code> if the
+	 *        option is given by code
+	 * @return the encoded option
+	 * @throws IllegalArgumentException if the option is unknown, set by the
+	 *         server itself or the value is invalid
+	 */
+	public static byte[] encode(String name, String value) {
+		name = name.trim().toLowerCase();
+		
+		try {
+			if (name.startsWith(CODE_PREFIX)) {
+				int code = Integer.parseInt(name.substring(CODE_PREFIX.length()));
+				int split = value.indexOf(':');
+				
+				if (code <= DHCPOptions.OPTION_PAD || code >= DHCPOptions.OPTION_END)
+					throw new IllegalArgumentException("Invalid option code: " + code);
+				for (int managed : SERVER_MANAGED) {
+					if (code == managed)
+						throw new IllegalArgumentException("Option " + code + " is set by the server");
+				}
+				if (split < 0)
+					throw new IllegalArgumentException("type:value expected");
+				
+				return encode(code, Type.byName(value.substring(0, split)).encode(
+				    value.substring(split + 1)));
+			}
+			
+			Entry e = NAMES.get(name);
+			if (e == null)
+				throw new IllegalArgumentException("Unknown option");
+			
+			return encode(e.code, e.type.encode(value));
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid option " + name + "=" + value + ": "
+			    + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Encodes an option including code and length. Values longer than 255
+	 * bytes are split into several options.
+	 * 
+	 * @param code the option code
+	 * @param value the value of the option
+	 * @return the encoded option, empty if the value is empty
+	 */
+	public static byte[] encode(int code, byte[] value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		for (int pos = 0; pos < value.length; pos += 255) {
+			int length = Math.min(255, value.length - pos);
+			
+			out.write(code);
+			out.write(length);
+			out.write(value, pos, length);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Compiles all options of a section of the configuration into one
+	 * block, ordered by code.
+	 * 
+	 * @param settings the configuration
+	 * @param section the section holding the options of the scope
+	 * @return the encoded options, empty if the section doesn't exist
+	 * @throws IllegalArgumentException if an option is invalid or set twice
+	 */
+	public static byte[] compile(IniParser settings, String section) {
+		return compile(settings, section, Collections.<String> emptySet());
+	}
+	
+	/**
+	 * Compiles the options of a section of the configuration into one
+	 * block, ordered by code. Fields which are no options are skipped.
+	 * 
+	 * @param settings the configuration
+	 * @param section the section holding the options of the scope
+	 * @param skip the names of the fields which are no options
+	 * @return the encoded options, empty if the section doesn't exist
+	 * @throws IllegalArgumentException if an option is invalid or set twice
+	 */
+	public static byte[] compile(IniParser settings, String section, Collection<String> skip) {
+		TreeMap<Integer, byte[]> options = new TreeMap<Integer, byte[]>();
+		
+		for (String name : settings.getNames(section)) {
+			if (skip.contains(name))
+				continue;
+			
+			byte[] option = encode(name, settings.getString(section, name));
+			
+			if (option.length > 0 && options.put(0xFF & option[0], option) != null)
+				throw new IllegalArgumentException("Option " + (0xFF & option[0])
+				    + " set twice in section " + section);
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] option : options.values()) {
+			out.write(option, 0, option.length);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Compiles options given as <code>name=value</code> pairs.
+	 * 
+	 * @param options the options
+	 * @return the encoded options in the given order
+	 * @throws IllegalArgumentException if an option is invalid
+	 */
+	public static byte[] compile(List<String> options) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		for (String option : options) {
+			int split = option.indexOf('=');
+			if (split < 1)
+				throw new IllegalArgumentException("Invalid option: " + option);
+			
+			byte[] encoded = encode(option.substring(0, split), option.substring(split + 1));
+			out.write(encoded, 0, encoded.length);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Merges two blocks of encoded options.
+	 * 
+	 * @param base the options to start with
+	 * @param override options which replace the options of <code>base</code>
+	 *        with the same code
+	 * @return the merged block
+	 */
+	public static byte[] merge(byte[] base, byte[] override) {
+		if (override.length == 0)
+			return base;
+		
+		boolean[] replaced = new boolean[256];
+		for (int pos = 0; pos < override.length; pos += 2 + (0xFF & override[pos + 1])) {
+			replaced[0xFF & override[pos]] = true;
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int pos = 0; pos < base.length; pos += 2 + (0xFF & base[pos + 1])) {
+			if (!replaced[0xFF & base[pos]]) {
+				out.write(base, pos, 2 + (0xFF & base[pos + 1]));
+			}
+		}
+		out.write(override, 0, override.length);
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Parses an ip adress in dotted notation.
+	 * 
+	 * @param value the value to parse
+	 * @return the ip adress as 4 bytes
+	 * @throws IllegalArgumentException if the value is no ip adress
+	 */
+	static byte[] parseIp(String value) {
+		String[] parts = value.trim().split("\\.");
+		byte[] back = new byte[4];
+		
+		try {
+			if (parts.length != 4)
+				throw new NumberFormatException();
+			
+			for (int i = 0; i < 4; i++) {
+				int val = Integer.parseInt(parts[i]);
+				if (val < 0 || val > 255)
+					throw new NumberFormatException();
+				
+				back[i] = (byte) val;
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid ip adress: " + value);
+		}
+		
+		return back;
+	}
+	
+	private static byte[] unsigned(String value, int bytes) {
+		long val;
+		
+		try {
+			val = Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number: " + value);
+		}
+		
+		if (val < 0 || val >= (1L << (8 * bytes)))
+			throw new IllegalArgumentException("Number out of range: " + value);
+		
+		byte[] back = new byte[bytes];
+		for (int i = 0; i < bytes; i++) {
+			back[i] = (byte) (val >>> (8 * (bytes - 1 - i)));
+		}
+		
+		return back;
+	}
+}
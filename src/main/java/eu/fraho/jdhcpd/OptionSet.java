@@ -0,0 +1,156 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * The encoded options a reply can contain, split into one fragment per
+ * option code. A reply only contains the options the client asked for in
+ * its parameter request list (option 55), in the order of that list, plus
+ * the options which are always sent.<br>
+ * <br>
+ * Clients of the same operating system send the same list, so there are
+ * only a few distinct lists. The assembled block is cached per list and
+ * copied into the reply as it is.
+ * 
+ * @author sfrankenberger
+ */
+public final class OptionSet {
+	/**
+	 * Options sent even if the client didn't ask for them, in this order
+	 */
+	private static final int[] ALWAYS = {
+	    DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER, DHCPOptions.OPTION_DHCP_IP_LEASE_TIME,
+	    DHCPOptions.OPTION_DHCP_RENEWAL_TIME, DHCPOptions.OPTION_DHCP_REBIND_TIME,
+	    DHCPOptions.OPTION_NETMASK
+	};
+	
+	/**
+	 * Maximum number of cached lists, further lists are assembled for
+	 * every reply
+	 */
+	private static final int MAX_CACHED = 256;
+	
+	/**
+	 * All options, sent if the client has no parameter request list
+	 */
+	private final byte[] block;
+	
+	/**
+	 * The encoded options by code, including code and length
+	 */
+	private final byte[][] fragments = new byte[256][];
+	
+	/**
+	 * The assembled blocks by parameter request list
+	 */
+	private final ConcurrentHashMap<ByteBuffer, byte[]> cache = new ConcurrentHashMap<ByteBuffer, byte[]>();
+	
+	/**
+	 * Splits the given block of encoded options.
+	 * 
+	 * @param block the encoded options, it is not copied
+	 */
+	public OptionSet(byte[] block) {
+		this.block = block;
+		
+		for (int pos = 0; pos < block.length; pos += 2 + (0xFF & block[pos + 1])) {
+			int code = 0xFF & block[pos];
+			int length = 2 + (0xFF & block[pos + 1]);
+			byte[] old = fragments[code] == null ? new byte[0] : fragments[code];
+			
+			// options longer than 255 bytes are split into several fragments
+			fragments[code] = new byte[old.length + length];
+			System.arraycopy(old, 0, fragments[code], 0, old.length);
+			System.arraycopy(block, pos, fragments[code], old.length, length);
+		}
+	}
+	
+	/**
+	 * @return all options, must not be modified
+	 */
+	public byte[] getEncoded() {
+		return block;
+	}
+	
+	/**
+	 * Returns the options to send to a client with the given parameter
+	 * request list.
+	 * 
+	 * @param prl the value of option 55, <code>null</code> if the client
+	 *        didn't send it
+	 * @return the encoded options, must not be modified
+	 */
+	public byte[] select(byte[] prl) {
+		if (prl == null || prl.length == 0)
+			return block;
+		
+		byte[] back = cache.get(ByteBuffer.wrap(prl));
+		
+		if (back == null) {
+			back = assemble(prl);
+			
+			if (cache.size() < MAX_CACHED) {
+				cache.putIfAbsent(ByteBuffer.wrap(prl.clone()), back);
+			}
+		}
+		
+		return back;
+	}
+	
+	/**
+	 * Builds the block for a parameter request list.
+	 * 
+	 * @param prl the requested option codes
+	 * @return the encoded options
+	 */
+	private byte[] assemble(byte[] prl) {
+		boolean[] added = new boolean[256];
+		ByteArrayOutputStream out = new ByteArrayOutputStream(block.length);
+		
+		for (int code : ALWAYS) {
+			add(out, added, code);
+		}
+		for (byte code : prl) {
+			add(out, added, 0xFF & code);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	private void add(ByteArrayOutputStream out, boolean[] added, int code) {
+		if (added[code] || fragments[code] == null)
+			return;
+		
+		added[code] = true;
+		out.write(fragments[code], 0, fragments[code].length);
+	}
+	
+	/**
+	 * @return the number of cached parameter request lists
+	 */
+	public int getCachedLists() {
+		return cache.size();
+	}
+}
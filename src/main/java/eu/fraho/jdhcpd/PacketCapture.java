@@ -0,0 +1,371 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the datagrams sent and received by the server into a pcap file,
+ * which can be opened with wireshark or tcpdump. The socket only copies
+ * the datagram into a bounded queue, a background thread writes the
+ * records. If the queue is full the datagram is dropped and counted,
+ * serving the clients is never slowed down.<br>
+ * <br>
+ * The ip and udp headers are synthesized from the adresses known to the
+ * socket, so the file uses the link type <code>RAW</code>. When the file
+ * exceeds its maximum size it is rotated like a log file
+ * (<code>capture.pcap</code> becomes <code>capture.pcap.1</code> and so on).
+ * 
+ * @author sfrankenberger
+ */
+public class PacketCapture extends MyThread {
+	/**
+	 * Link type for raw ip packets without a link layer header
+	 */
+	private static final int LINKTYPE_RAW = 101;
+	
+	/**
+	 * Maximum number of bytes stored per packet
+	 */
+	private static final int SNAPLEN = 65535;
+	
+	/**
+	 * Size of the ip and udp header which is put in front of the payload
+	 */
+	private static final int HEADER_SIZE = 28;
+	
+	/**
+	 * Private class holding one captured datagram until it is written.
+	 * 
+	 * @author sfrankenberger
+	 */
+	private static class Record {
+		private final long seconds;
+		private final int micros;
+		private final byte[] src;
+		private final int src_port;
+		private final byte[] dst;
+		private final int dst_port;
+		private final byte[] payload;
+		
+		public Record(InetAddress src, int src_port, InetAddress dst, int dst_port,
+		    byte[] data, int offset, int length) {
+			Instant now = Instant.now();
+			
+			this.seconds = now.getEpochSecond();
+			this.micros = now.getNano() / 1000;
+			this.src = address(src);
+			this.src_port = src_port;
+			this.dst = address(dst);
+			this.dst_port = dst_port;
+			this.payload = new byte[length];
+			
+			System.arraycopy(data, offset, payload, 0, length);
+		}
+		
+		private static byte[] address(InetAddress a) {
+			if (a == null || a.getAddress().length != 4)
+				return new byte[4];
+			
+			return a.getAddress();
+		}
+	}
+	
+	/**
+	 * The file the packets are written to
+	 */
+	private final File file;
+	
+	/**
+	 * Maximum size of a file before it is rotated
+	 */
+	private final long max_size;
+	
+	/**
+	 * How many rotated files are kept
+	 */
+	private final int max_files;
+	
+	/**
+	 * Datagrams waiting to be written
+	 */
+	private final ArrayBlockingQueue<Record> queue;
+	
+	/**
+	 * Log to report errors to
+	 */
+	private final EventLog log;
+	
+	/**
+	 * Number of packets written
+	 */
+	private final AtomicLong written = new AtomicLong();
+	
+	/**
+	 * Number of packets dropped because the queue was full
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+	
+	/**
+	 * The currently opened file
+	 */
+	private DataOutputStream out;
+	
+	/**
+	 * Bytes written into the current file
+	 */
+	private long size;
+	
+	/**
+	 * Creates a new capture. It has to be started before datagrams are
+	 * written.
+	 * 
+	 * @param file the file to write
+	 * @param max_size maximum size of a file in bytes before it is rotated
+	 * @param max_files number of rotated files to keep
+	 * @param queue_size how many datagrams may wait to be written
+	 * @param log the log to report errors to
+	 */
+	public PacketCapture(File file, long max_size, int max_files, int queue_size, EventLog log) {
+		this.file = file;
+		this.max_size = max_size;
+		this.max_files = max_files;
+		this.queue = new ArrayBlockingQueue<Record>(queue_size);
+		this.log = log;
+		
+		setName("Packet_Capture");
+	}
+	
+	/**
+	 * Creates a capture from the <code>capture</code> section of the
+	 * settings.
+	 * 
+	 * @param settings the configuration to read
+	 * @param log the log to report errors to
+	 * @return the capture or <code>null</code> if capturing is disabled
+	 */
+	public static PacketCapture fromSettings(IniParser settings, EventLog log) {
+		if (!Boolean.parseBoolean(settings.getString("capture", "enabled", "false")))
+			return null;
+		
+		String file = settings.getString("capture", "file");
+		Integer max_size = settings.getInt("capture", "max_size");
+		Integer max_files = settings.getInt("capture", "max_files");
+		Integer queue_size = settings.getInt("capture", "queue_size");
+		
+		return new PacketCapture(new File(file == null ? "capture.pcap" : file),
+		    max_size == null ? 10 * 1024 * 1024 : max_size,
+		    max_files == null ? 5 : max_files,
+		    queue_size == null ? 1024 : queue_size, log);
+	}
+	
+	/**
+	 * Captures a received datagram. Never blocks.
+	 * 
+	 * @param data the buffer of the datagram
+	 * @param offset where the datagram starts in the buffer
+	 * @param length the length of the datagram
+	 * @param src the adress of the sender
+	 * @param src_port the port of the sender
+	 * @param local the adress the datagram was received on
+	 * @param local_port the port the datagram was received on
+	 */
+	public void inbound(byte[] data, int offset, int length, InetAddress src, int src_port,
+	    InetAddress local, int local_port) {
+		enqueue(src, src_port, local, local_port, data, offset, length);
+	}
+	
+	/**
+	 * Captures a datagram which is sent. Never blocks.
+	 * 
+	 * @param data the buffer of the datagram
+	 * @param offset where the datagram starts in the buffer
+	 * @param length the length of the datagram
+	 * @param dst the adress of the receiver
+	 * @param dst_port the port of the receiver
+	 * @param local the adress the datagram is sent from
+	 * @param local_port the port the datagram is sent from
+	 */
+	public void outbound(byte[] data, int offset, int length, InetAddress dst, int dst_port,
+	    InetAddress local, int local_port) {
+		enqueue(local, local_port, dst, dst_port, data, offset, length);
+	}
+	
+	private void enqueue(InetAddress src, int src_port, InetAddress dst, int dst_port,
+	    byte[] data, int offset, int length) {
+		if (isAborted() || queue.remainingCapacity() == 0) {
+			dropped.incrementAndGet();
+			return;
+		}
+		
+		Record r = new Record(src, src_port, dst, dst_port, data, offset,
+		    Math.min(length, SNAPLEN - HEADER_SIZE));
+		
+		if (!queue.offer(r))
+			dropped.incrementAndGet();
+	}
+	
+	/**
+	 * @return number of packets written into the capture
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+	
+	/**
+	 * @return number of packets dropped because the writer fell behind
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/**
+	 * @return the file the packets are written to
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Opens the capture file and writes the pcap header.
+	 * 
+	 * @throws IOException if the file could not be opened
+	 */
+	private void open() throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		
+		out.writeInt(0xa1b2c3d4); // magic, microsecond timestamps
+		out.writeShort(2); // version 2.4
+		out.writeShort(4);
+		out.writeInt(0); // GMT
+		out.writeInt(0); // accuracy of timestamps
+		out.writeInt(SNAPLEN);
+		out.writeInt(LINKTYPE_RAW);
+		
+		size = 24;
+	}
+	
+	/**
+	 * Closes the current file and shifts the older files by one.
+	 * 
+	 * @throws IOException if the new file could not be opened
+	 */
+	private void rotate() throws IOException {
+		Tools.close(out);
+		
+		for (int i = max_files - 1; i > 0; i--) {
+			File from = new File(file.getPath() + (i == 1 ? "" : "." + (i - 1)));
+			File to = new File(file.getPath() + "." + i);
+			
+			if (from.exists()) {
+				to.delete();
+				from.renameTo(to);
+			}
+		}
+		
+		open();
+	}
+	
+	/**
+	 * Writes one record including the synthesized ip and udp header.
+	 * 
+	 * @param r the record to write
+	 * @throws IOException if writing fails
+	 */
+	private void write(Record r) throws IOException {
+		int udp_length = 8 + r.payload.length;
+		int ip_length = 20 + udp_length;
+		
+		if (size + 16 + ip_length > max_size && size > 24)
+			rotate();
+		
+		out.writeInt((int) r.seconds);
+		out.writeInt(r.micros);
+		out.writeInt(ip_length);
+		out.writeInt(ip_length);
+		
+		byte[] ip = new byte[20];
+		ip[0] = 0x45; // version 4, 5 words header
+		ip[2] = (byte) (ip_length >>> 8);
+		ip[3] = (byte) ip_length;
+		ip[8] = 64; // ttl
+		ip[9] = 17; // udp
+		System.arraycopy(r.src, 0, ip, 12, 4);
+		System.arraycopy(r.dst, 0, ip, 16, 4);
+		
+		int sum = 0;
+		for (int i = 0; i < 20; i += 2) {
+			sum += ((0xFF & ip[i]) << 8) | (0xFF & ip[i + 1]);
+		}
+		while ((sum >>> 16) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		sum = ~sum;
+		ip[10] = (byte) (sum >>> 8);
+		ip[11] = (byte) sum;
+		
+		out.write(ip);
+		out.writeShort(r.src_port);
+		out.writeShort(r.dst_port);
+		out.writeShort(udp_length);
+		out.writeShort(0); // no checksum
+		out.write(r.payload);
+		
+		size += 16 + ip_length;
+		written.incrementAndGet();
+	}
+	
+	@Override
+	public void run() {
+		try {
+			open();
+			
+			while (doContinueWork() || !queue.isEmpty()) {
+				Record r = queue.poll(100, TimeUnit.MILLISECONDS);
+				
+				if (r != null) {
+					write(r);
+				}
+				
+				if (queue.isEmpty()) {
+					out.flush();
+				}
+			}
+		}
+		catch (IOException e) {
+			log.error(e);
+			abort();
+		}
+		catch (InterruptedException e) {
+			abort();
+		}
+		finally {
+			Tools.close(out);
+		}
+	}
+}
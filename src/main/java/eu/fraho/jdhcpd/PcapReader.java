@@ -0,0 +1,274 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the udp datagrams of a pcap file. Supports the link types
+ * written by tcpdump on ethernet and on the "any" interface, raw ip
+ * packets as written by {@link PacketCapture} and the BSD loopback.
+ * Packets which are no IPv4 / udp packets are skipped.
+ * 
+ * @author sfrankenberger
+ */
+public class PcapReader implements Closeable {
+	private static final int LINKTYPE_NULL = 0;
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int LINKTYPE_RAW = 101;
+	private static final int LINKTYPE_LINUX_SLL = 113;
+	private static final int LINKTYPE_IPV4 = 228;
+	
+	/**
+	 * An udp datagram read from the file.
+	 * 
+	 * @author sfrankenberger
+	 */
+	public static class Datagram {
+		private final long timestamp;
+		private final byte[] src;
+		private final int src_port;
+		private final byte[] dst;
+		private final int dst_port;
+		private final byte[] payload;
+		
+		private Datagram(long timestamp, byte[] src, int src_port, byte[] dst, int dst_port,
+		    byte[] payload) {
+			this.timestamp = timestamp;
+			this.src = src;
+			this.src_port = src_port;
+			this.dst = dst;
+			this.dst_port = dst_port;
+			this.payload = payload;
+		}
+		
+		/**
+		 * @return when the datagram was captured, in microseconds since 1970
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+		
+		/**
+		 * @return the source ip adress
+		 */
+		public byte[] getSource() {
+			return src;
+		}
+		
+		/**
+		 * @return the source port
+		 */
+		public int getSourcePort() {
+			return src_port;
+		}
+		
+		/**
+		 * @return the destination ip adress
+		 */
+		public byte[] getDestination() {
+			return dst;
+		}
+		
+		/**
+		 * @return the destination port
+		 */
+		public int getDestinationPort() {
+			return dst_port;
+		}
+		
+		/**
+		 * @return the content of the datagram
+		 */
+		public byte[] getPayload() {
+			return payload;
+		}
+	}
+	
+	private final DataInputStream in;
+	
+	/**
+	 * Are the headers written in little endian?
+	 */
+	private final boolean swapped;
+	
+	/**
+	 * Are the timestamps in nanoseconds instead of microseconds?
+	 */
+	private final boolean nanos;
+	
+	private final int linktype;
+	
+	/**
+	 * Opens the given file and reads the pcap header.
+	 * 
+	 * @param f the file to read
+	 * @throws IOException if the file could not be read or is no pcap file
+	 */
+	public PcapReader(File f) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		
+		int magic = in.readInt();
+		switch (magic) {
+			case 0xa1b2c3d4:
+				swapped = false;
+				nanos = false;
+				break;
+			case 0xd4c3b2a1:
+				swapped = true;
+				nanos = false;
+				break;
+			case 0xa1b23c4d:
+				swapped = false;
+				nanos = true;
+				break;
+			case 0x4d3cb2a1:
+				swapped = true;
+				nanos = true;
+				break;
+			default:
+				in.close();
+				throw new IOException("Not a pcap file: " + f);
+		}
+		
+		in.skipBytes(16); // version, timezone, accuracy, snaplen
+		linktype = readInt();
+		
+		if (linktype != LINKTYPE_NULL && linktype != LINKTYPE_ETHERNET && linktype != LINKTYPE_RAW
+		    && linktype != LINKTYPE_LINUX_SLL && linktype != LINKTYPE_IPV4) {
+			in.close();
+			throw new IOException("Unsupported link type " + linktype + " in " + f);
+		}
+	}
+	
+	/**
+	 * Reads the next udp datagram.
+	 * 
+	 * @return the datagram or <code>null</code> at the end of the file
+	 * @throws IOException if the file could not be read
+	 */
+	public Datagram next() throws IOException {
+		while (true) {
+			long seconds;
+			
+			try {
+				seconds = 0xFFFFFFFFL & readInt();
+			}
+			catch (EOFException e) {
+				return null;
+			}
+			
+			long fraction = 0xFFFFFFFFL & readInt();
+			int caplen = readInt();
+			readInt(); // original length
+			
+			byte[] packet = new byte[caplen];
+			in.readFully(packet);
+			
+			long timestamp = seconds * 1000000 + (nanos ? fraction / 1000 : fraction);
+			Datagram d = parse(timestamp, packet);
+			
+			if (d != null)
+				return d;
+		}
+	}
+	
+	/**
+	 * Strips the link layer, ip and udp header from a packet.
+	 * 
+	 * @return the datagram or <code>null</code> if it is no IPv4 / udp packet
+	 */
+	private Datagram parse(long timestamp, byte[] p) {
+		int pos;
+		
+		switch (linktype) {
+			case LINKTYPE_NULL:
+				pos = 4;
+				break;
+			case LINKTYPE_ETHERNET:
+				pos = 12;
+				
+				// skip vlan tags
+				while (pos + 2 <= p.length && (u16(p, pos) == 0x8100 || u16(p, pos) == 0x88a8))
+					pos += 4;
+				
+				if (pos + 2 > p.length || u16(p, pos) != 0x0800)
+					return null;
+				
+				pos += 2;
+				break;
+			case LINKTYPE_LINUX_SLL:
+				if (p.length < 16 || u16(p, 14) != 0x0800)
+					return null;
+				
+				pos = 16;
+				break;
+			default:
+				pos = 0;
+				break;
+		}
+		
+		if (p.length < pos + 28 || (p[pos] & 0xF0) != 0x40 || p[pos + 9] != 17)
+			return null;
+		
+		// fragments are not reassembled
+		if ((u16(p, pos + 6) & 0x3FFF) != 0)
+			return null;
+		
+		byte[] src = new byte[4];
+		byte[] dst = new byte[4];
+		System.arraycopy(p, pos + 12, src, 0, 4);
+		System.arraycopy(p, pos + 16, dst, 0, 4);
+		
+		pos += (p[pos] & 0x0F) * 4;
+		if (p.length < pos + 8)
+			return null;
+		
+		int src_port = u16(p, pos);
+		int dst_port = u16(p, pos + 2);
+		int length = Math.min(u16(p, pos + 4) - 8, p.length - pos - 8);
+		if (length < 0)
+			return null;
+		
+		byte[] payload = new byte[length];
+		System.arraycopy(p, pos + 8, payload, 0, length);
+		
+		return new Datagram(timestamp, src, src_port, dst, dst_port, payload);
+	}
+	
+	private static int u16(byte[] b, int pos) {
+		return ((0xFF & b[pos]) << 8) | (0xFF & b[pos + 1]);
+	}
+	
+	private int readInt() throws IOException {
+		int v = in.readInt();
+		return swapped ? Integer.reverseBytes(v) : v;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,249 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+/**
+ * The adresses of a scope: one or more disjoint ranges without the
+ * excluded adresses (gateways, static devices). Adresses are handled as
+ * unsigned 32 bit numbers, held in a <code>long</code>, so ranges may
+ * cross octet boundaries.<br>
+ * <br>
+ * The ranges and the exclusions are stored in two interval trees, a
+ * membership check and the search for the next adress of the pool take
+ * O(log n) in the number of ranges. Exclusions may overlap each other and
+ * the borders of the ranges.
+ * 
+ * @author sfrankenberger
+ */
+final class Pool {
+	/**
+	 * A static interval tree. The intervals are sorted by their start and
+	 * form an implicit balanced search tree: the root of the slice
+	 * <code>[l, r]</code> is its middle element. Every node stores the
+	 * largest end in its subtree, so subtrees ending before the searched
+	 * adress are skipped.
+	 * 
+	 * @author sfrankenberger
+	 */
+	private static class IntervalTree {
+		/**
+		 * The first adress of each interval, sorted
+		 */
+		private final long[] lo;
+		
+		/**
+		 * The last adress of each interval
+		 */
+		private final long[] hi;
+		
+		/**
+		 * The largest last adress in the subtree of a node
+		 */
+		private final long[] max;
+		
+		/**
+		 * Builds the tree.
+		 * 
+		 * @param intervals first and last adress of each interval
+		 */
+		public IntervalTree(int[] intervals) {
+			int n = intervals.length / 2;
+			long[] sorted = new long[n];
+			
+			for (int i = 0; i < n; i++) {
+				sorted[i] = (unsigned(intervals[2 * i]) << 32) | unsigned(intervals[2 * i + 1]);
+			}
+			Arrays.sort(sorted);
+			
+			lo = new long[n];
+			hi = new long[n];
+			max = new long[n];
+			
+			for (int i = 0; i < n; i++) {
+				lo[i] = sorted[i] >>> 32;
+				hi[i] = sorted[i] & 0xFFFFFFFFL;
+			}
+			
+			augment(0, n - 1);
+		}
+		
+		private long augment(int l, int r) {
+			if (l > r)
+				return -1;
+			
+			int mid = (l + r) >>> 1;
+			max[mid] = Math.max(hi[mid], Math.max(augment(l, mid - 1), augment(mid + 1, r)));
+			
+			return max[mid];
+		}
+		
+		/**
+		 * Finds the largest end of the intervals containing an adress.
+		 * 
+		 * @param ip the adress
+		 * @return the largest last adress or -1 if no interval contains
+		 *         the adress
+		 */
+		public long cover(long ip) {
+			return cover(ip, 0, lo.length - 1);
+		}
+		
+		private long cover(long ip, int l, int r) {
+			long back = -1;
+			
+			while (l <= r) {
+				int mid = (l + r) >>> 1;
+				
+				if (max[mid] < ip)
+					break;
+				
+				back = Math.max(back, cover(ip, l, mid - 1));
+				
+				if (lo[mid] > ip)
+					break;
+				
+				if (hi[mid] >= ip) {
+					back = Math.max(back, hi[mid]);
+				}
+				
+				l = mid + 1;
+			}
+			
+			return back;
+		}
+		
+		/**
+		 * Finds the first interval starting at or behind an adress.
+		 * 
+		 * @param ip the adress
+		 * @return the first adress of the interval or -1 if there is none
+		 */
+		public long ceiling(long ip) {
+			int l = 0;
+			int r = lo.length - 1;
+			
+			while (l <= r) {
+				int mid = (l + r) >>> 1;
+				
+				if (lo[mid] < ip)
+					l = mid + 1;
+				else
+					r = mid - 1;
+			}
+			
+			return l < lo.length ? lo[l] : -1;
+		}
+		
+		/**
+		 * @return the number of intervals
+		 */
+		public int size() {
+			return lo.length;
+		}
+	}
+	
+	/**
+	 * The ranges of the pool, disjoint
+	 */
+	private final IntervalTree ranges;
+	
+	/**
+	 * The excluded adresses
+	 */
+	private final IntervalTree excluded;
+	
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param ranges first and last adress of each range, the ranges must
+	 *        not overlap
+	 * @param excluded first and last adress of each excluded range
+	 */
+	public Pool(int[] ranges, int[] excluded) {
+		this.ranges = new IntervalTree(ranges);
+		this.excluded = new IntervalTree(excluded);
+	}
+	
+	/**
+	 * Checks whether an adress belongs to the pool.
+	 * 
+	 * @param ip the adress
+	 * @return is the adress in a range and not excluded?
+	 */
+	public boolean contains(int ip) {
+		long u = unsigned(ip);
+		
+		return ranges.cover(u) >= 0 && excluded.cover(u) < 0;
+	}
+	
+	/**
+	 * Finds the first adress of the pool at or behind the given adress.
+	 * Excluded adresses and the gaps between the ranges are skipped as a
+	 * whole.
+	 * 
+	 * @param from the adress to start from, unsigned
+	 * @return the adress, unsigned, or -1 if there is no adress left
+	 */
+	public long next(long from) {
+		long ip = from;
+		
+		while (ip >= 0 && ip <= 0xFFFFFFFFL) {
+			long end = excluded.cover(ip);
+			
+			if (end >= 0) {
+				ip = end + 1;
+			}
+			else if (ranges.cover(ip) >= 0) {
+				return ip;
+			}
+			else {
+				ip = ranges.ceiling(ip);
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * @return the first adress of the pool, -1 if all adresses are
+	 *         excluded
+	 */
+	public long first() {
+		return next(0);
+	}
+	
+	/**
+	 * @return the number of ranges
+	 */
+	public int getRangeCount() {
+		return ranges.size();
+	}
+	
+	/**
+	 * Converts an adress into an unsigned number.
+	 * 
+	 * @param ip the adress
+	 * @return the adress between 0 and 2^32 - 1
+	 */
+	static long unsigned(int ip) {
+		return 0xFFFFFFFFL & ip;
+	}
+}
@@ -0,0 +1,204 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+/**
+ * Maps ip prefixes (network and prefix length) to values and finds the
+ * longest prefix containing an ip adress. The prefixes are stored in a
+ * compressed binary radix trie: a node holds its whole prefix and
+ * branches on the first bit behind it, so a lookup visits at most one
+ * node per stored prefix length, independent of the number of prefixes.<br>
+ * <br>
+ * The nodes are kept in parallel arrays, a lookup doesn't allocate.
+ * 
+ * @author sfrankenberger
+ */
+final class PrefixTrie {
+	/**
+	 * The prefix of a node, the bits behind the length are 0
+	 */
+	private int[] keys = new int[8];
+	
+	/**
+	 * The number of significant bits of the prefix of a node
+	 */
+	private int[] lengths = new int[8];
+	
+	/**
+	 * The value of a node, -1 for inner nodes without a value
+	 */
+	private int[] values = new int[8];
+	
+	/**
+	 * The child of a node whose next bit is 0, -1 if none
+	 */
+	private int[] zero = new int[8];
+	
+	/**
+	 * The child of a node whose next bit is 1, -1 if none
+	 */
+	private int[] one = new int[8];
+	
+	/**
+	 * The number of nodes
+	 */
+	private int size;
+	
+	/**
+	 * The root node, -1 while the trie is empty
+	 */
+	private int root = -1;
+	
+	/**
+	 * Stores a value for a prefix.
+	 * 
+	 * @param network the adress of the network
+	 * @param length the prefix length, 0 to 32
+	 * @param value the value, not negative
+	 * @return the value stored before for the same prefix, -1 if none
+	 */
+	public int put(int network, int length, int value) {
+		int key = network & mask(length);
+		
+		if (root < 0) {
+			root = node(key, length, value);
+			return -1;
+		}
+		
+		int parent = -1;
+		int node = root;
+		
+		while (true) {
+			int common = Math.min(Math.min(length, lengths[node]),
+			    Integer.numberOfLeadingZeros(key ^ keys[node]));
+			
+			if (common < lengths[node]) {
+				int inner;
+				
+				if (common == length) {
+					// the new prefix contains this node
+					inner = node(key, length, value);
+				}
+				else {
+					// both branch off a new inner node
+					inner = node(key & mask(common), common, -1);
+					link(inner, key, node(key, length, value));
+				}
+				
+				link(inner, keys[node], node);
+				replace(parent, node, inner);
+				return -1;
+			}
+			
+			if (lengths[node] == length) {
+				int old = values[node];
+				values[node] = value;
+				
+				return old;
+			}
+			
+			int next = bit(key, lengths[node]) == 0 ? zero[node] : one[node];
+			if (next < 0) {
+				link(node, key, node(key, length, value));
+				return -1;
+			}
+			
+			parent = node;
+			node = next;
+		}
+	}
+	
+	/**
+	 * Finds the value of the longest prefix containing the given adress.
+	 * 
+	 * @param ip the adress to look up
+	 * @return the value or -1 if no prefix contains the adress
+	 */
+	public int lookup(int ip) {
+		int best = -1;
+		int node = root;
+		
+		while (node >= 0 && ((ip ^ keys[node]) & mask(lengths[node])) == 0) {
+			if (values[node] >= 0)
+				best = values[node];
+			if (lengths[node] == 32)
+				break;
+			
+			node = bit(ip, lengths[node]) == 0 ? zero[node] : one[node];
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Creates a new node without children.
+	 * 
+	 * @return the index of the node
+	 */
+	private int node(int key, int length, int value) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			lengths = Arrays.copyOf(lengths, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+			zero = Arrays.copyOf(zero, size * 2);
+			one = Arrays.copyOf(one, size * 2);
+		}
+		
+		keys[size] = key;
+		lengths[size] = length;
+		values[size] = value;
+		zero[size] = -1;
+		one[size] = -1;
+		
+		return size++;
+	}
+	
+	/**
+	 * Attaches a child to a node, on the side of the first bit of the key
+	 * behind the prefix of the node.
+	 */
+	private void link(int node, int key, int child) {
+		if (bit(key, lengths[node]) == 0)
+			zero[node] = child;
+		else
+			one[node] = child;
+	}
+	
+	/**
+	 * Replaces a child of a node, or the root if the node is -1.
+	 */
+	private void replace(int parent, int old, int child) {
+		if (parent < 0)
+			root = child;
+		else if (zero[parent] == old)
+			zero[parent] = child;
+		else
+			one[parent] = child;
+	}
+	
+	private static int mask(int length) {
+		return length == 0 ? 0 : -1 << (32 - length);
+	}
+	
+	private static int bit(int key, int index) {
+		return (key >>> (31 - index)) & 1;
+	}
+}
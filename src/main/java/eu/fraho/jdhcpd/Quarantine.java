@@ -0,0 +1,116 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/**
+ * The adresses a client declined because another device already uses
+ * them (DHCPDECLINE, RFC 2131 3.1.5). They are not offered for the hold
+ * time, afterwards the conflict is assumed to be solved.<br>
+ * <br>
+ * The end of the hold time of each adress is kept in an {@link IpTable},
+ * so checking an adress during the allocation is a single probe
+ * sequence without creating objects.
+ * 
+ * @author sfrankenberger
+ */
+final class Quarantine {
+	/**
+	 * The end of the hold time by adress
+	 */
+	private final IpTable<Long> held = new IpTable<Long>();
+	
+	/**
+	 * How long an adress is held in milliseconds
+	 */
+	private long hold_time;
+	
+	/**
+	 * The clock deciding when the hold time ends
+	 */
+	private final Clock clock;
+	
+	/**
+	 * Creates a new, empty quarantine.
+	 * 
+	 * @param hold_time how long an adress is held in milliseconds
+	 * @param clock the clock deciding when the hold time ends
+	 */
+	public Quarantine(long hold_time, Clock clock) {
+		this.hold_time = hold_time;
+		this.clock = clock;
+	}
+	
+	/**
+	 * Changes how long adresses are held. Adresses which are already held
+	 * keep the end of their hold time.
+	 * 
+	 * @param hold_time how long an adress is held in milliseconds
+	 */
+	public synchronized void setHoldTime(long hold_time) {
+		this.hold_time = hold_time;
+	}
+	
+	/**
+	 * Puts an adress into quarantine. An adress which is already held is
+	 * held again for the whole hold time.
+	 * 
+	 * @param ip the declined adress
+	 */
+	public synchronized void add(byte[] ip) {
+		held.put(Tools.byteToInt(ip), clock.currentTimeMillis() + hold_time);
+	}
+	
+	/**
+	 * Checks whether an adress is held.
+	 * 
+	 * @param ip the adress to check
+	 * @return must the adress not be offered?
+	 */
+	public synchronized boolean contains(byte[] ip) {
+		Long until = held.get(Tools.byteToInt(ip));
+		
+		return until != null && until - clock.currentTimeMillis() >= 0;
+	}
+	
+	/**
+	 * Removes the adresses whose hold time ended.
+	 * 
+	 * @return the number of released adresses
+	 */
+	public synchronized int expire() {
+		long now = clock.currentTimeMillis();
+		
+		return held.removeIf(until -> until - now < 0);
+	}
+	
+	/**
+	 * Releases all adresses.
+	 */
+	public synchronized void clear() {
+		held.clear();
+	}
+	
+	/**
+	 * @return the number of held adresses, including ones whose hold time
+	 *         ended since the last {@link #expire()}
+	 */
+	public synchronized int size() {
+		return held.size();
+	}
+}
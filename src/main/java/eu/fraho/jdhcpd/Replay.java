@@ -0,0 +1,308 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the dhcp requests of a pcap file against a server which uses a
+ * {@link MemoryTransport}, so no network interface or privileged port is
+ * needed. The requests are injected with their original timing (or scaled
+ * by the given factor), the replies are matched to the requests by their
+ * transaction id.<br>
+ * <br>
+ * When all requests were answered the tool prints the throughput, the
+ * latency distribution and the resulting lease table. The server reads its
+ * settings from the <code>config.ini</code> in the working directory, as
+ * usual.
+ * 
+ * @author sfrankenberger
+ */
+public class Replay {
+	/**
+	 * How long no reply may arrive until the replay is considered finished (ms)
+	 */
+	private static final int QUIET_TIME = 500;
+	
+	/**
+	 * Factor the original inter-packet gaps are divided by, 0 to not wait at all
+	 */
+	private final double speed;
+	
+	/**
+	 * Print the messages of the server?
+	 */
+	private final boolean verbose;
+	
+	/**
+	 * The requests read from the file
+	 */
+	private final List<PcapReader.Datagram> requests = new ArrayList<PcapReader.Datagram>();
+	
+	/**
+	 * When the requests with a given xid were injected (System.nanoTime()),
+	 * oldest first. A client reuses the xid of the discover for its request.
+	 */
+	private final Map<Integer, Queue<Long>> injected = new ConcurrentHashMap<Integer, Queue<Long>>();
+	
+	private final LatencyHistogram latency = new LatencyHistogram();
+	
+	private volatile long replies;
+	
+	private volatile long unmatched;
+	
+	/**
+	 * When the last reply was sent (System.nanoTime())
+	 */
+	private volatile long last_reply;
+	
+	/**
+	 * @param speed factor the original timing is divided by, 0 to inject as
+	 *              fast as possible
+	 * @param verbose print the messages of the server?
+	 */
+	public Replay(double speed, boolean verbose) {
+		this.speed = speed;
+		this.verbose = verbose;
+	}
+	
+	/**
+	 * Reads the dhcp requests (udp packets to port 67 with op BOOTREQUEST)
+	 * from the given file.
+	 * 
+	 * @param f the pcap file to read
+	 * @return number of requests read
+	 * @throws IOException if the file could not be read
+	 */
+	public int load(File f) throws IOException {
+		PcapReader in = new PcapReader(f);
+		
+		try {
+			PcapReader.Datagram d;
+			
+			while ((d = in.next()) != null) {
+				byte[] p = d.getPayload();
+				
+				if (d.getDestinationPort() == 67 && p.length >= 240 && p[0] == 1)
+					requests.add(d);
+			}
+		}
+		finally {
+			in.close();
+		}
+		
+		return requests.size();
+	}
+	
+	/**
+	 * Starts a server, injects all requests and waits until the server has
+	 * no more work to do. Prints the results afterwards.
+	 * 
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public void run() throws InterruptedException {
+		final MemoryTransport transport = new MemoryTransport();
+		Server server = new Server(transport);
+		
+		if (verbose) {
+			server.getEventLog().addListener(System.out::println);
+		}
+		
+		server.start();
+		
+		Thread collector = new Thread("Replay_Collector") {
+			@Override
+			public void run() {
+				try {
+					while (!isInterrupted()) {
+						MemoryTransport.Datagram d = transport.poll(100);
+						
+						if (d != null)
+							collect(d);
+					}
+				}
+				catch (InterruptedException e) {
+					// finished
+				}
+			}
+		};
+		collector.setDaemon(true);
+		collector.start();
+		
+		long start = System.nanoTime();
+		long first = requests.isEmpty() ? 0 : requests.get(0).getTimestamp();
+		
+		for (PcapReader.Datagram d : requests) {
+			if (speed > 0) {
+				long due = start + (long) ((d.getTimestamp() - first) * 1000 / speed);
+				long now;
+				
+				while ((now = System.nanoTime()) < due) {
+					LockSupport.parkNanos(due - now);
+				}
+			}
+			
+			byte[] p = d.getPayload();
+			Queue<Long> times = injected.get(xid(p));
+			if (times == null) {
+				times = new ConcurrentLinkedQueue<Long>();
+				injected.put(xid(p), times);
+			}
+			
+			times.add(System.nanoTime());
+			transport.inject(p);
+		}
+		
+		// wait until the server is idle
+		long last = replies;
+		long quiet = System.currentTimeMillis();
+		while ((transport.getPending() > 0 || System.currentTimeMillis() - quiet < QUIET_TIME)
+		    && server.isRunnning()) {
+			Thread.sleep(50);
+			
+			if (replies != last) {
+				last = replies;
+				quiet = System.currentTimeMillis();
+			}
+		}
+		
+		long elapsed = (replies > 0 ? last_reply : System.nanoTime()) - start;
+		HashMap<String, Object> table = server.getTable();
+		
+		collector.interrupt();
+		server.abort();
+		server.waitTillDone();
+		
+		report(elapsed, table);
+	}
+	
+	/**
+	 * Matches a reply to its request and records the latency.
+	 * 
+	 * @param d the reply sent by the server
+	 */
+	private void collect(MemoryTransport.Datagram d) {
+		byte[] p = d.getData();
+		Queue<Long> times = p.length >= 8 ? injected.get(xid(p)) : null;
+		Long sent = times == null ? null : times.poll();
+		
+		if (sent == null) {
+			unmatched++;
+		}
+		else {
+			latency.record(d.getTimestamp() - sent);
+		}
+		
+		last_reply = d.getTimestamp();
+		replies++;
+	}
+	
+	private void report(long elapsed, Map<String, Object> table) {
+		double seconds = elapsed / 1e9;
+		
+		System.out.println("Requests:   " + requests.size());
+		int unanswered = 0;
+		for (Queue<Long> times : injected.values()) {
+			unanswered += times.size();
+		}
+		
+		System.out.println("Replies:    " + replies + " (" + unmatched + " unmatched, "
+		    + unanswered + " requests unanswered)");
+		System.out.println(String.format("Elapsed:    %.3f s", seconds));
+		System.out.println(String.format("Throughput: %.1f requests/s",
+		    requests.size() / seconds));
+		System.out.println("Latency:    " + latency.summary());
+		System.out.println();
+		System.out.println("Leases (" + table.size() + "):");
+		
+		for (Map.Entry<String, Object> e : new TreeMap<String, Object>(table).entrySet()) {
+			System.out.println(e.getKey() + " => " + e.getValue());
+		}
+	}
+	
+	private static int xid(byte[] p) {
+		return ((0xFF & p[4]) << 24) | ((0xFF & p[5]) << 16) | ((0xFF & p[6]) << 8)
+		    | (0xFF & p[7]);
+	}
+	
+	private static void usage() {
+		System.err.println("Usage: Replay [--speed FACTOR | --fast] [--verbose] FILE");
+		System.err.println("  --speed FACTOR  replay FACTOR times faster than captured (default 1)");
+		System.err.println("  --fast          inject all requests without waiting");
+		System.err.println("  --verbose       print the messages of the server");
+		System.exit(2);
+	}
+	
+	/**
+	 * Main method of the replay tool.
+	 * 
+	 * @param args see {@link #usage()}
+	 */
+	public static void main(String[] args) {
+		double speed = 1;
+		boolean verbose = false;
+		String file = null;
+		
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--speed") && i + 1 < args.length) {
+				speed = Double.parseDouble(args[++i]);
+			}
+			else if (args[i].equals("--fast")) {
+				speed = 0;
+			}
+			else if (args[i].equals("--verbose")) {
+				verbose = true;
+			}
+			else if (file == null && !args[i].startsWith("--")) {
+				file = args[i];
+			}
+			else {
+				usage();
+			}
+		}
+		
+		if (file == null)
+			usage();
+		
+		try {
+			Replay r = new Replay(speed, verbose);
+			System.out.println("Read " + r.load(new File(file)) + " requests from " + file);
+			r.run();
+		}
+		catch (IOException e) {
+			System.err.println(e.getLocalizedMessage());
+			System.exit(1);
+		}
+		catch (InterruptedException e) {
+			System.exit(1);
+		}
+		
+		System.exit(0);
+	}
+}
@@ -0,0 +1,319 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * Remembers the encoded replies of the last requests for a few seconds.
+ * A client which doesn't get its reply in time sends the same request
+ * again, with the same transaction id. Such a retransmission gets the
+ * stored datagram again, without allocating an adress, touching the
+ * leases or encoding the reply a second time.<br>
+ * <br>
+ * The requests are identified by the client hardware adress, the
+ * transaction id and the message type. A request which is still being
+ * answered is marked as pending, a retransmission arriving meanwhile is
+ * dropped, the client gets the answer of the first one. The cache holds
+ * a limited number of replies, the oldest ones are dropped first.
+ * 
+ * @author sfrankenberger
+ */
+final class ReplyCache {
+	/**
+	 * Returned by {@link #begin(DHCPMessage)} if the same request is
+	 * answered right now
+	 */
+	static final Reply PENDING = new Reply(null, null, 0, 0);
+	
+	/**
+	 * Identifies a request. The hardware adress is stored as two longs, so
+	 * a key needs no array.
+	 * 
+	 * @author sfrankenberger
+	 */
+	private static final class Key {
+		private final long chaddr_high;
+		private final long chaddr_low;
+		private final int xid;
+		private final byte type;
+		
+		public Key(DHCPMessage m, byte type) {
+			byte[] chaddr = m.getChaddr();
+			
+			this.chaddr_high = toLong(chaddr, 0);
+			this.chaddr_low = toLong(chaddr, 8);
+			this.xid = m.getXid();
+			this.type = type;
+		}
+		
+		private static long toLong(byte[] b, int offset) {
+			long back = 0;
+			
+			for (int i = offset; i < offset + 8; i++) {
+				back = (back << 8) | (i < b.length ? 0xFF & b[i] : 0);
+			}
+			
+			return back;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			
+			Key k = (Key) o;
+			return chaddr_high == k.chaddr_high && chaddr_low == k.chaddr_low && xid == k.xid
+			    && type == k.type;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * (31 * (31 * Long.hashCode(chaddr_high) + Long.hashCode(chaddr_low)) + xid)
+			    + type;
+		}
+	}
+	
+	/**
+	 * A stored reply and where it was sent to. The reply of a pending
+	 * request is filled in when it is sent.
+	 * 
+	 * @author sfrankenberger
+	 */
+	static final class Reply {
+		private byte[] data;
+		private InetAddress address;
+		private int port;
+		private long expires;
+		
+		public Reply(byte[] data, InetAddress address, int port, long expires) {
+			this.data = data;
+			this.address = address;
+			this.port = port;
+			this.expires = expires;
+		}
+		
+		/**
+		 * @return the encoded reply, must not be modified
+		 */
+		public byte[] getData() {
+			return data;
+		}
+		
+		/**
+		 * @return the adress the reply was sent to
+		 */
+		public InetAddress getAddress() {
+			return address;
+		}
+		
+		/**
+		 * @return the port the reply was sent to
+		 */
+		public int getPort() {
+			return port;
+		}
+	}
+	
+	/**
+	 * The replies by request, oldest first
+	 */
+	private final LinkedHashMap<Key, Reply> replies;
+	
+	/**
+	 * How long a reply is kept in milliseconds
+	 */
+	private long keep_time;
+	
+	/**
+	 * The clock deciding when a reply expires
+	 */
+	private final Clock clock;
+	
+	/**
+	 * The time of the current call, read by the removal of the eldest entry
+	 */
+	private long now;
+	
+	/**
+	 * Number of retransmissions answered from the cache or dropped
+	 * because the request was pending
+	 */
+	private long hits;
+	
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param size the maximum number of replies
+	 * @param keep_time how long a reply is kept in milliseconds, 0 disables
+	 *        the cache
+	 * @param clock the clock deciding when a reply expires
+	 */
+	public ReplyCache(final int size, long keep_time, Clock clock) {
+		this.keep_time = keep_time;
+		this.clock = clock;
+		this.replies = new LinkedHashMap<Key, Reply>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Reply> eldest) {
+				// every request adds an entry, so removing one expired entry
+				// per request keeps up with the expiry
+				return size() > size || eldest.getValue().expires - now < 0;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the message type of a request whose reply is cached, only
+	 * requests which are answered are cached.
+	 * 
+	 * @param m the request
+	 * @return the message type or 0 if the request is not cached
+	 */
+	private static byte cachedType(DHCPMessage m) {
+		byte[] type = m.getOption(DHCPOptions.OPTION_DHCP_MESSAGE_TYPE);
+		if (type == null || type.length == 0)
+			return 0;
+		
+		switch (type[0]) {
+			case DHCPMessage.DHCPDISCOVER:
+			case DHCPMessage.DHCPREQUEST:
+			case DHCPMessage.DHCPINFORM:
+				return type[0];
+			default:
+				return 0;
+		}
+	}
+	
+	/**
+	 * Looks up the reply of a request. If the request is new, it is marked
+	 * as pending until its reply is stored by
+	 * {@link #put(DHCPMessage, byte[], InetAddress, int)} or it is finished
+	 * by {@link #end(DHCPMessage)}.
+	 * 
+	 * @param m the request
+	 * @return the stored reply, {@link #PENDING} if the request is answered
+	 *         right now or <code>null</code> if the request has to be
+	 *         answered
+	 */
+	public synchronized Reply begin(DHCPMessage m) {
+		byte type = cachedType(m);
+		if (keep_time <= 0 || type == 0)
+			return null;
+		
+		now = clock.currentTimeMillis();
+		
+		Key key = new Key(m, type);
+		Reply back = replies.get(key);
+		
+		if (back != null && back.expires - now >= 0) {
+			hits++;
+			return back.data == null ? PENDING : back;
+		}
+		
+		replies.put(key, new Reply(null, null, 0, now + keep_time));
+		return null;
+	}
+	
+	/**
+	 * Stores the reply of a request.
+	 * 
+	 * @param m the request
+	 * @param data the encoded reply, it is not copied
+	 * @param address the adress the reply was sent to
+	 * @param port the port the reply was sent to
+	 */
+	public synchronized void put(DHCPMessage m, byte[] data, InetAddress address, int port) {
+		byte type = cachedType(m);
+		if (keep_time <= 0 || type == 0)
+			return;
+		
+		now = clock.currentTimeMillis();
+		
+		Key key = new Key(m, type);
+		Reply r = replies.get(key);
+		
+		if (r != null && r.data == null) {
+			r.data = data;
+			r.address = address;
+			r.port = port;
+			r.expires = now + keep_time;
+		}
+		else {
+			replies.put(key, new Reply(data, address, port, now + keep_time));
+		}
+	}
+	
+	/**
+	 * Finishes a request. If no reply was stored, the pending mark is
+	 * removed and a retransmission is answered again.
+	 * 
+	 * @param m the request
+	 */
+	public synchronized void end(DHCPMessage m) {
+		byte type = cachedType(m);
+		if (keep_time <= 0 || type == 0)
+			return;
+		
+		Key key = new Key(m, type);
+		Reply r = replies.get(key);
+		
+		if (r != null && r.data == null) {
+			replies.remove(key);
+		}
+	}
+	
+	/**
+	 * Changes how long the replies are kept. Stored replies keep their
+	 * expiry time.
+	 * 
+	 * @param keep_time how long a reply is kept in milliseconds, 0 disables
+	 *        the cache
+	 */
+	public synchronized void setKeepTime(long keep_time) {
+		this.keep_time = keep_time;
+	}
+	
+	/**
+	 * Removes all replies, called when the configuration changed.
+	 */
+	public synchronized void clear() {
+		replies.clear();
+	}
+	
+	/**
+	 * @return the number of stored replies and pending requests
+	 */
+	public synchronized int size() {
+		return replies.size();
+	}
+	
+	/**
+	 * @return the number of retransmissions which were not answered again
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+}
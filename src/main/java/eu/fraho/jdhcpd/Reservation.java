@@ -0,0 +1,259 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A fixed ip adress reserved for one host, identified by its mac adress
+ * or its client identifier (option 61). A host can get own options which
+ * replace the options of the configuration with the same code.<br>
+ * <br>
+ * The reservations are read from a text file with one host per line:
+ * <code><pre>
+ * # MAC or client-id        IP          options
+ * 00:11:22:33:44:55         10.0.0.5    hostname=printer1
+ * id:01:00:11:22:33:44:66   10.0.0.6    routers=10.0.0.1 dns_servers=10.0.0.53,10.0.0.54
+ * </pre></code>
+ * The options are the ones of the {@link OptionCatalog}, lists are
+ * separated by commas.
+ * 
+ * @author sfrankenberger
+ */
+public final class Reservation {
+	/**
+	 * Prefix of keys which are client identifiers
+	 */
+	public static final String CLIENT_ID = "id:";
+	
+	/**
+	 * The mac adress or the client identifier (prefixed by {@link #CLIENT_ID})
+	 */
+	private final String key;
+	
+	/**
+	 * The reserved ip adress
+	 */
+	private final byte[] ip;
+	
+	/**
+	 * The encoded options of this host
+	 */
+	private final byte[] options;
+	
+	/**
+	 * Encoded options of a DHCPOFFER, including the options of the
+	 * configuration
+	 */
+	private final OptionSet offer_options;
+	
+	/**
+	 * Encoded options of a DHCPACK, including the options of the
+	 * configuration
+	 */
+	private final OptionSet ack_options;
+	
+	/**
+	 * Encoded options of a DHCPACK answering a DHCPINFORM, including the
+	 * options of the configuration
+	 */
+	private final OptionSet inform_options;
+	
+	/**
+	 * Creates a new reservation which only sends its own options.
+	 * 
+	 * @param key the mac adress or the client identifier
+	 * @param ip the reserved ip adress
+	 * @param options the encoded options of this host
+	 */
+	public Reservation(String key, byte[] ip, byte[] options) {
+		this(key, ip, options, new OptionSet(options));
+	}
+	
+	private Reservation(String key, byte[] ip, byte[] options, OptionSet own) {
+		this(key, ip, options, own, own, own);
+	}
+	
+	private Reservation(String key, byte[] ip, byte[] options, OptionSet offer_options,
+	    OptionSet ack_options, OptionSet inform_options) {
+		this.key = key;
+		this.ip = ip.clone();
+		this.options = options;
+		this.offer_options = offer_options;
+		this.ack_options = ack_options;
+		this.inform_options = inform_options;
+	}
+	
+	/**
+	 * Creates a copy of this reservation whose replies contain the options
+	 * of the given scope, unless this host has an own option with the same
+	 * code.
+	 * 
+	 * @param network the scope of the network the reserved adress belongs to
+	 * @return the new reservation
+	 */
+	Reservation bind(Scope network) {
+		return new Reservation(key, ip, options,
+		    new OptionSet(OptionCatalog.merge(network.getOfferOptions().getEncoded(), options)),
+		    new OptionSet(OptionCatalog.merge(network.getAckOptions().getEncoded(), options)),
+		    new OptionSet(OptionCatalog.merge(network.getInformOptions().getEncoded(), options)));
+	}
+	
+	/**
+	 * Reads the reservations from the given file.
+	 * 
+	 * @param f the file to read
+	 * @return the reservations in the order of the file
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if a line is invalid
+	 */
+	public static List<Reservation> load(File f) throws IOException {
+		List<Reservation> back = new ArrayList<Reservation>();
+		
+		try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+			String line = null;
+			int number = 0;
+			
+			while ((line = br.readLine()) != null) {
+				number++;
+				
+				if (line.startsWith("#") || line.trim().length() == 0)
+					continue;
+				
+				try {
+					back.add(parse(line.trim()));
+				}
+				catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException(f.getName() + ", line " + number + ": "
+					    + e.getMessage());
+				}
+			}
+		}
+		
+		return back;
+	}
+	
+	/**
+	 * Parses one line of the reservations file.
+	 * 
+	 * @param line the line to parse
+	 * @return the reservation
+	 * @throws IllegalArgumentException if the line is invalid
+	 */
+	private static Reservation parse(String line) {
+		String[] parts = line.split("[ \t]+");
+		
+		if (parts.length < 2)
+			throw new IllegalArgumentException("mac and ip expected: " + line);
+		
+		String key = parts[0].toLowerCase();
+		String id = key.startsWith(CLIENT_ID) ? key.substring(CLIENT_ID.length()) : key;
+		if (!id.matches("[0-9a-f]{2}(:[0-9a-f]{2})*")
+		    || (!key.startsWith(CLIENT_ID) && id.length() != 17))
+			throw new IllegalArgumentException("Invalid mac adress or client-id: " + parts[0]);
+		
+		byte[] ip = OptionCatalog.parseIp(parts[1]);
+		if (!Tools.checkIp(ip))
+			throw new IllegalArgumentException("Invalid ip adress: " + parts[1]);
+		
+		byte[] options = OptionCatalog.compile(Arrays.asList(parts).subList(2, parts.length));
+		
+		return new Reservation(key, ip, options);
+	}
+	
+	/**
+	 * Builds the key of a client identifier as used in the reservations
+	 * file.
+	 * 
+	 * @param id the value of option 61
+	 * @return the key to look up
+	 */
+	public static String clientId(byte[] id) {
+		StringBuilder back = new StringBuilder(CLIENT_ID);
+		
+		for (int i = 0; i < id.length; i++) {
+			if (i > 0)
+				back.append(':');
+			back.append(Character.forDigit((id[i] >> 4) & 0xF, 16));
+			back.append(Character.forDigit(id[i] & 0xF, 16));
+		}
+		
+		return back.toString();
+	}
+	
+	/**
+	 * @return the mac adress or the client identifier
+	 */
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * @return the reserved ip adress
+	 */
+	public byte[] getIp() {
+		return ip.clone();
+	}
+	
+	/**
+	 * @return the options of a DHCPOFFER
+	 */
+	OptionSet getOfferOptions() {
+		return offer_options;
+	}
+	
+	/**
+	 * @return the options of a DHCPACK
+	 */
+	OptionSet getAckOptions() {
+		return ack_options;
+	}
+	
+	/**
+	 * @return the options of a DHCPACK answering a DHCPINFORM
+	 */
+	OptionSet getInformOptions() {
+		return inform_options;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Reservation))
+			return false;
+		
+		Reservation r = (Reservation) o;
+		return key.equals(r.key) && Arrays.equals(ip, r.ip) && Arrays.equals(options, r.options);
+	}
+	
+	@Override
+	public int hashCode() {
+		return key.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return key + " -> " + Tools.byteToIp(ip);
+	}
+}
@@ -0,0 +1,292 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A pool of ip adresses together with the options which are announced to
+ * the clients leasing from it. The server has one default scope built from
+ * the <code>global</code> section, every subnet and client class may add
+ * its own.<br>
+ * <br>
+ * A pool consists of one or more disjoint ranges without the excluded
+ * adresses (gateways, static devices), see {@link Pool}. The adresses of
+ * reservations are marked in a bitmap, so the allocation skips them
+ * without looking at the leases.<br>
+ * <br>
+ * Scopes are created while a {@link ServerConfig} is built and never
+ * changed afterwards.
+ * 
+ * @author sfrankenberger
+ */
+public final class Scope {
+	/**
+	 * The name of the scope, the name of the subnet, the class or
+	 * <code>global</code>
+	 */
+	private final String name;
+	
+	/**
+	 * The ranges of the pool, first and last adress of each range, sorted
+	 */
+	private final int[] ranges;
+	
+	/**
+	 * The excluded ranges, first and last adress of each range, sorted
+	 */
+	private final int[] excluded;
+	
+	/**
+	 * The adresses to offer
+	 */
+	private final Pool pool;
+	
+	/**
+	 * Encoded options of a DHCPOFFER
+	 */
+	private final OptionSet offer_options;
+	
+	/**
+	 * Encoded options of a DHCPACK answering a DHCPREQUEST
+	 */
+	private final OptionSet ack_options;
+	
+	/**
+	 * Encoded options of a DHCPACK answering a DHCPINFORM
+	 */
+	private final OptionSet inform_options;
+	
+	/**
+	 * The reserved ip adresses inside the ranges, bit 0 is the first
+	 * adress of the first range.
+	 */
+	private final BitSet reserved = new BitSet();
+	
+	/**
+	 * Answer a DHCPDISCOVER with rapid commit (option 80) by a DHCPACK?
+	 */
+	private final boolean rapid_commit;
+	
+	/**
+	 * Creates a new scope. The arrays are copied.
+	 * 
+	 * @param name the name of the scope
+	 * @param ranges the ranges of the pool, as returned by
+	 *        {@link #parseRanges(String)}
+	 * @param excluded the excluded adresses, as returned by
+	 *        {@link #parseRanges(String)}
+	 * @param offer the encoded options of a DHCPOFFER
+	 * @param ack the encoded options of a DHCPACK
+	 * @param inform the encoded options of a DHCPACK answering a DHCPINFORM
+	 * @param rapid_commit answer a DHCPDISCOVER with rapid commit by a
+	 *        DHCPACK (RFC 4039)?
+	 * @throws IllegalArgumentException if the ranges span more adresses
+	 *         than {@link #reserved} can index
+	 */
+	Scope(String name, int[] ranges, int[] excluded, byte[] offer, byte[] ack, byte[] inform,
+	    boolean rapid_commit) {
+		this.name = name;
+		this.ranges = ranges.clone();
+		this.excluded = excluded.clone();
+		this.offer_options = new OptionSet(offer);
+		this.ack_options = new OptionSet(ack);
+		this.inform_options = new OptionSet(inform);
+		this.rapid_commit = rapid_commit;
+		
+		if (Pool.unsigned(ranges[ranges.length - 1]) - Pool.unsigned(ranges[0]) >= Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Scope " + name + ": the ranges span too many adresses");
+		
+		pool = new Pool(ranges, excluded);
+	}
+	
+	/**
+	 * Parses a comma separated list of ip adresses and ranges like
+	 * <code>10.0.0.1, 10.0.0.20-10.0.0.40</code>.
+	 * 
+	 * @param value the list to parse
+	 * @return the first and the last adress of each range, sorted
+	 * @throws IllegalArgumentException if an adress is invalid or two
+	 *         ranges overlap
+	 */
+	static int[] parseRanges(String value) {
+		String[] parts = value.trim().split("[ \t]*,[ \t]*");
+		long[] sorted = new long[parts.length];
+		int count = 0;
+		
+		for (String part : parts) {
+			if (part.length() == 0)
+				continue;
+			
+			String[] ips = part.split("[ \t]*-[ \t]*", 2);
+			int first = Tools.byteToInt(OptionCatalog.parseIp(ips[0]));
+			int last = ips.length > 1 ? Tools.byteToInt(OptionCatalog.parseIp(ips[1])) : first;
+			
+			if (Integer.compareUnsigned(first, last) > 0)
+				throw new IllegalArgumentException("Invalid range: " + part);
+			
+			// unsigned, so the ranges sort by their first adress
+			sorted[count++] = ((0xFFFFFFFFL & first) << 32) | (0xFFFFFFFFL & last);
+		}
+		
+		sorted = Arrays.copyOf(sorted, count);
+		Arrays.sort(sorted);
+		
+		int[] back = new int[2 * count];
+		for (int i = 0; i < count; i++) {
+			back[2 * i] = (int) (sorted[i] >>> 32);
+			back[2 * i + 1] = (int) sorted[i];
+			
+			if (i > 0 && Integer.compareUnsigned(back[2 * i], back[2 * i - 1]) <= 0)
+				throw new IllegalArgumentException("Overlapping ranges: " + value);
+		}
+		
+		return back;
+	}
+	
+	/**
+	 * Returns the bit of an adress inside the ranges in {@link #reserved}.
+	 * 
+	 * @param ip the adress, has to be in a range
+	 * @return the bit of the adress
+	 */
+	private int offset(int ip) {
+		return (int) (Pool.unsigned(ip) - Pool.unsigned(ranges[0]));
+	}
+	
+	/**
+	 * Marks an ip adress as reserved for a host. Only called while the
+	 * configuration is built.
+	 * 
+	 * @param ip the reserved ip adress, ignored if it is not in this scope
+	 */
+	void reserve(byte[] ip) {
+		if (inRange(ip)) {
+			reserved.set(offset(Tools.byteToInt(ip)));
+		}
+	}
+	
+	/**
+	 * Checks whether the given ip adress is in one of the ranges of this
+	 * scope and not excluded.
+	 * 
+	 * @param ip the ip adress to check
+	 * @return is the ip adress in the pool?
+	 */
+	public boolean inRange(byte[] ip) {
+		return pool.contains(Tools.byteToInt(ip));
+	}
+	
+	/**
+	 * Checks whether the given ip adress is reserved for a host.
+	 * 
+	 * @param ip the ip adress to check
+	 * @return is the ip adress reserved?
+	 */
+	public boolean isReserved(byte[] ip) {
+		if (!inRange(ip))
+			return false;
+		
+		return reserved.get(offset(Tools.byteToInt(ip)));
+	}
+	
+	/**
+	 * @return does a client which asks for rapid commit get a DHCPACK
+	 *         without a DHCPOFFER?
+	 */
+	public boolean isRapidCommit() {
+		return rapid_commit;
+	}
+	
+	/**
+	 * @return the name of the scope
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return the first ip adress to offer
+	 */
+	public byte[] getFirstIp() {
+		return Tools.intToByte(ranges[0]);
+	}
+	
+	/**
+	 * @return the last ip adress to offer
+	 */
+	public byte[] getLastIp() {
+		return Tools.intToByte(ranges[ranges.length - 1]);
+	}
+	
+	/**
+	 * @return the ranges of the pool, first and last adress of each range
+	 */
+	int[] getRanges() {
+		return ranges.clone();
+	}
+	
+	/**
+	 * @return the excluded ranges, first and last adress of each range
+	 */
+	int[] getExcluded() {
+		return excluded.clone();
+	}
+	
+	/**
+	 * @return the adresses to offer
+	 */
+	Pool getPool() {
+		return pool;
+	}
+	
+	/**
+	 * @return the options of a DHCPOFFER
+	 */
+	OptionSet getOfferOptions() {
+		return offer_options;
+	}
+	
+	/**
+	 * @return the options of a DHCPACK
+	 */
+	OptionSet getAckOptions() {
+		return ack_options;
+	}
+	
+	/**
+	 * @return the options of a DHCPACK answering a DHCPINFORM
+	 */
+	OptionSet getInformOptions() {
+		return inform_options;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder back = new StringBuilder(name).append(" (");
+		
+		for (int r = 0; r < ranges.length; r += 2) {
+			back.append(r == 0 ? "" : ", ").append(Tools.byteToIp(Tools.intToByte(ranges[r])))
+			    .append(" - ").append(Tools.byteToIp(Tools.intToByte(ranges[r + 1])));
+		}
+		
+		return back.append(")").toString();
+	}
+}
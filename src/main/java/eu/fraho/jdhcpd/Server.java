@@ -23,15 +23,23 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.bucknell.net.JDHCP.DHCPMessage;
 import edu.bucknell.net.JDHCP.DHCPOptions;
 import edu.bucknell.net.JDHCP.DHCPSocket;
+import eu.fraho.jdhcpd.EventLog.Level;
+import eu.fraho.jdhcpd.jfr.AllocationEvent;
+import eu.fraho.jdhcpd.jfr.EncodeEvent;
+import eu.fraho.jdhcpd.jfr.LeaseLookupEvent;
+import eu.fraho.jdhcpd.jfr.PersistEvent;
+import eu.fraho.jdhcpd.jfr.RequestEvent;
 
 /**
  * Class which represents the server. Implemented as a thread which
@@ -43,92 +51,30 @@ import edu.bucknell.net.JDHCP.DHCPSocket;
  */
 public class Server extends MyThread {
 	/**
-	 * Private class which defines IP-Adress ranges and provides the ability
-	 * to check wheter a given IP is in the given range.
-	 * 
-	 * @author sfrankenberger
+	 * The rapid commit option (RFC 4039)
 	 */
-	private static class IPRange {
-		/**
-		 * The first ip adress in this range
-		 */
-		private int[] i_from;
-		
-		/**
-		 * The last ip adress in this range
-		 */
-		private int[] i_till;
-		
-		/**
-		 * Creates a new ip adress range between the given adresses. (including)
-		 * 
-		 * @param from the first ip in this range
-		 * @param till the last ip in this range
-		 */
-		public IPRange(byte[] from, byte[] till) {
-			i_from = Tools.byteAToIntA(from);
-			i_till = Tools.byteAToIntA(till);
-		}
-		
-		/**
-		 * Checks whether the given ip adress is in this range.
-		 * 
-		 * @param ip the ip adress to check
-		 * @return is the given ip adress in this range?
-		 */
-		public boolean inRange(byte[] ip) {
-			int[] i_ip = Tools.byteAToIntA(ip);
-			
-			for (int i = 0; i < 4; i++) {
-				if (i_ip[i] < i_from[i] || i_ip[i] > i_till[i])
-					return false;
-			}
-			
-			return true;
-		}
-		
-		/**
-		 * Returns the next ip adress in this range, starting from the given
-		 * ip adress.
-		 * 
-		 * @param ip the ip adress to start from.
-		 * @return the next ip adress in this range.
-		 */
-		public byte[] nextIp(byte[] ip) {
-			int[] akt = {
-			    0xFF & ip[0], 0xFF & ip[1], 
-			    0xFF & ip[2], 0xFF & ip[3]
-			};
-			akt[3]++;
-			
-			if (akt[3] > i_till[3]) {
-				akt[3] = 1;
-				akt[2]++;
-			}
-			
-			if (akt[2] > i_till[2]) {
-				akt[2] = 0;
-				akt[1]++;
-			}
-			
-			if (akt[1] > i_till[1]) {
-				akt[1] = 0;
-				akt[0]++;
-			}
-			
-			byte[] back = {
-			    (byte) akt[0], (byte) akt[1], 
-			    (byte) akt[2], (byte) akt[3]
-			};
-			
-			if (inRange(back))
-				return back;
-			else
-				return new byte[] {
-				    0, 0, 0, 0
-				};
-		}
-	}
+	public static final int OPTION_RAPID_COMMIT = 80;
+	
+	/**
+	 * The relay agent information option (RFC 3046)
+	 */
+	public static final int OPTION_RELAY_AGENT_INFORMATION = 82;
+	
+	/**
+	 * The subnet selection option (RFC 3011)
+	 */
+	public static final int OPTION_SUBNET_SELECTION = 118;
+	
+	/**
+	 * The link selection suboption of the relay agent information
+	 * (RFC 3527)
+	 */
+	private static final byte SUBOPTION_LINK_SELECTION = 5;
+	
+	/**
+	 * Maximum number of replies kept for retransmitted requests
+	 */
+	private static final int REPLY_CACHE_SIZE = 4096;
 	
 	/**
 	 * Private class to represent a lease. Stores the ip-adress and the time the
@@ -136,11 +82,11 @@ public class Server extends MyThread {
 	 * 
 	 * @author sfrankenberger
 	 */
-	private static class Lease {
+	private class Lease {
 		/**
 		 * The time how long a lease should be valid.
 		 */
-		private int lease_time = Tools.byteToInt(Application.getLeaseTime()) * 1000;
+		private long lease_time = config.getLeaseTime() * 1000L;
 		
 		/**
 		 * The ip adress assigned to this lease.
@@ -168,7 +114,7 @@ public class Server extends MyThread {
 		 */
 		public Lease(byte[] ip) {
 			ip_byte = ip.clone();
-			leased = System.currentTimeMillis() + 600000;
+			leased = clock.currentTimeMillis();
 			
 			ip_string = Tools.byteToIp(ip_byte);
 		}
@@ -215,7 +161,7 @@ public class Server extends MyThread {
 		 * @return is this lease still valid?
 		 */
 		public boolean isValid() {
-			return (leased + lease_time >= System.currentTimeMillis());
+			return (leased + lease_time >= clock.currentTimeMillis());
 		}
 		
 		/**
@@ -226,10 +172,11 @@ public class Server extends MyThread {
 		}
 		
 		/**
-		 * Refreshes a lease (renew it)
+		 * Refreshes a lease (renew it) with the current lease time
 		 */
 		public void refreshLease() {
-			leased = System.currentTimeMillis() + 1000;
+			leased = clock.currentTimeMillis() + 1000;
+			lease_time = config.getLeaseTime() * 1000L;
 		}
 		
 		public String toString() {
@@ -258,6 +205,16 @@ public class Server extends MyThread {
 		private void check() {
 			ArrayList<String> toRemove = new ArrayList<String>();
 			
+			int expired = pending.expire();
+			if (expired > 0) {
+				log.text(Level.DEBUG, () -> expired + " offer(s) expired without a request");
+			}
+			
+			int released = quarantine.expire();
+			if (released > 0) {
+				log.text(Level.INFO, () -> released + " declined adress(es) released from quarantine");
+			}
+			
 			synchronized (adresses) {
 				for (String mac : adresses.keySet()) {
 					if (!adresses.get(mac).isValid()) {
@@ -266,7 +223,7 @@ public class Server extends MyThread {
 				}
 				
 				for (String mac : toRemove) {
-					message("Lease for " + adresses.get(mac).getIpString() + " expired.");
+					log.lease(EventLog.EVENT_EXPIRED, adresses.get(mac).getIp());
 					removeLeaseIfNotManual(mac);
 				}
 			}
@@ -280,7 +237,7 @@ public class Server extends MyThread {
 				check();
 				
 				try {
-					Thread.sleep(1000);
+					clock.sleep(1000);
 				}
 				catch (InterruptedException e) {
 					e.printStackTrace();
@@ -295,14 +252,14 @@ public class Server extends MyThread {
 	private HashMap<String, Lease> adresses;
 	
 	/**
-	 * Socket to send / receive dhcp messages.
+	 * Transport to send / receive dhcp messages.
 	 */
-	private DHCPSocket socket;
+	private Transport transport;
 	
 	/**
-	 * The adress range we should offer
+	 * The current configuration, replaced as a whole when it changes
 	 */
-	private IPRange iprange;
+	private volatile ServerConfig config;
 	
 	/**
 	 * An timer which deletes expired leases.
@@ -310,13 +267,101 @@ public class Server extends MyThread {
 	private LeaseTimer lease_timer;
 	
 	/**
-	 * Creates a new instance of this server
+	 * The asynchronous log of this server.
+	 */
+	private EventLog log;
+	
+	/**
+	 * Capture of all sent and received packets, <code>null</code> if disabled.
+	 */
+	private PacketCapture capture;
+	
+	/**
+	 * The last replies, sent again if a client retransmits its request
+	 */
+	private ReplyCache replies;
+	
+	/**
+	 * The adresses offered to clients which didn't request them yet
+	 */
+	private OfferTable pending;
+	
+	/**
+	 * The adresses declined by clients because they are in use
+	 */
+	private Quarantine quarantine;
+	
+	/**
+	 * Which transport to open if none was given: udp or nio
+	 */
+	private String transport_type;
+	
+	/**
+	 * Reloads the configuration file when it changes, <code>null</code> if
+	 * disabled.
+	 */
+	private ConfigWatcher watcher;
+	
+	/**
+	 * The leased adresses of the pool searched by
+	 * {@link #getNextFreeIp(String, Scope)}, bit 0 is the first adress of
+	 * the pool. Reused by every search.
+	 */
+	private final BitSet taken = new BitSet();
+	
+	/**
+	 * The clock used for the leases
+	 */
+	private final Clock clock;
+	
+	/**
+	 * Number of DHCPOFFERs sent
+	 */
+	private final AtomicLong offers = new AtomicLong();
+	
+	/**
+	 * Number of DHCPACKs sent for a DHCPREQUEST
+	 */
+	private final AtomicLong acks = new AtomicLong();
+	
+	/**
+	 * Number of DHCPACKs sent for a DHCPDISCOVER with rapid commit
+	 */
+	private final AtomicLong rapid_commits = new AtomicLong();
+	
+	/**
+	 * Creates a new instance of this server which listens on the
+	 * configured server ip.
 	 */
 	public Server() {
+		this(null);
+	}
+	
+	/**
+	 * Creates a new instance of this server which uses the given transport
+	 * instead of an udp socket.
+	 * 
+	 * @param transport the transport to use, <code>null</code> to listen on
+	 *                  the configured server ip.
+	 */
+	public Server(Transport transport) {
+		this(transport, Clock.SYSTEM);
+	}
+	
+	/**
+	 * Creates a new instance of this server which uses the given transport
+	 * and clock.
+	 * 
+	 * @param transport the transport to use, <code>null</code> to listen on
+	 *                  the configured server ip.
+	 * @param clock the clock to use for the leases
+	 */
+	public Server(Transport transport, Clock clock) {
+		this.clock = clock;
+		log = new EventLog();
 		loadSettings();
 		adresses = new HashMap<String, Lease>();
-		socket = null;
-		iprange = new IPRange(Application.getFirstIp(), Application.getLastIp());
+		this.transport = transport;
 		
 		lease_timer = new LeaseTimer();
 		
@@ -326,49 +371,31 @@ public class Server extends MyThread {
 	private void loadSettings() {
 		try {
 			IniParser settings = Application.settings;
+			ServerConfig config = ServerConfig.fromSettings(settings);
 			
-			Application.first_ip = Tools.ipToByte(settings.getString("global", "first_ip",
-			    "192.168.0.20"));
-			Application.last_ip = Tools.ipToByte(settings.getString("global", "last_ip",
-			    "192.168.0.254"));
-			Application.netmask = Tools.ipToByte(settings.getString("global", "netmask",
-			    "255.255.255.0"));
-			Application.server_ip = Tools.ipToByte(settings.getString("global", "server_ip",
-			    "192.168.0.1"));
-			Application.lease_time = Tools.intToByte(settings.getInt("global", "lease_time",
-			    Integer.MAX_VALUE));
-			Application.renewal_time = Tools.intToByte(settings.getInt("global", "renewal_time",
-			    (int) (Integer.MAX_VALUE * 0.75)));
-			
-			String[] dns_servers = settings.getString("global", "dns_servers",
-					"").split(" |\t");
-			
-			
-			int count = dns_servers.length;
-			for(int i=0; i<dns_servers.length; i++) {
-				byte[] akt = Tools.ipToByte(dns_servers[i]);
-				if(!Tools.checkIp(akt)) {
-					Application.getInstance().update(null, "Invalid DNS Server given in configuration file: " + dns_servers[i]);
-					dns_servers[i] = "";
-					count--;
-				}
-			}
+			replies = new ReplyCache(REPLY_CACHE_SIZE, 0, clock);
+			pending = new OfferTable(0, clock);
+			quarantine = new Quarantine(0, clock);
+			applyTimes(settings);
+			Application.apply(config);
+			setConfig(config);
 			
-			Application.dns_servers = new byte[count * 4];
-			int aktPos = 0;
-			for(int i=0; i< dns_servers.length; i++) {
-				String ip = dns_servers[i];
-				
-				if(ip.length() > 0) {
-					byte[] akt = Tools.ipToByte(ip);
-					
-					System.arraycopy(akt, 0, Application.dns_servers, aktPos*4, 4);
-					aktPos++;
-				}
+			transport_type = settings.getString("global", "transport", "udp");
+			
+			if (Boolean.parseBoolean(settings.getString("global", "reload", "true"))) {
+				watcher = new ConfigWatcher(this, log, Application.CONFIG, config.getReservationsFile());
 			}
 			
+			log.configure(settings);
+			capture = PacketCapture.fromSettings(settings, log);
+			
 			settings.save(Application.CONFIG);
 		}
+		catch (IllegalArgumentException e) {
+			Application.getInstance().update(null, "Invalid configuration file: " + e.getMessage());
+			
+			System.exit(1);
+		}
 		catch (IOException e) {
 			e.printStackTrace();
 			
@@ -376,6 +403,104 @@ public class Server extends MyThread {
 		}
 	}
 	
+	/**
+	 * Applies how long the replies, the offers and the declined adresses
+	 * are held. Entries which are already held keep their end.
+	 * 
+	 * @param settings the configuration to read
+	 */
+	private void applyTimes(IniParser settings) {
+		int reply_cache = settings.getInt("global", "reply_cache", 10);
+		int offer_time = settings.getInt("global", "offer_time", 30);
+		int decline_time = settings.getInt("global", "decline_time", 86400);
+		
+		replies.setKeepTime(Math.max(reply_cache, 0) * 1000L);
+		pending.setHoldTime(Math.max(offer_time, 1) * 1000L);
+		quarantine.setHoldTime(Math.max(decline_time, 0) * 1000L);
+	}
+	
+	/**
+	 * @return the configuration currently used by the server
+	 */
+	public ServerConfig getConfig() {
+		return config;
+	}
+	
+	/**
+	 * Replaces the configuration. Replies which are built at the same time
+	 * still use the old one, all following replies use the new one. The
+	 * cached replies of the old configuration are dropped.
+	 * 
+	 * @param config the new configuration
+	 */
+	public synchronized void setConfig(ServerConfig config) {
+		this.config = config;
+		replies.clear();
+	}
+	
+	/**
+	 * Switches to the configuration of the given settings while the
+	 * server keeps running. The leases are kept, leases outside of a
+	 * shrunk range or on a newly reserved ip adress are removed, so the
+	 * next renewal of the client is answered with a DHCPNAK and the client
+	 * gets a new adress. Manual leases are never removed. The hold times
+	 * of replies, offers and declined adresses apply to new entries.<br>
+	 * The server ip adress can't be changed without a restart.<br>
+	 * The settings are published to {@link Application#settings} and
+	 * applied while holding the lock of {@link Application}, the same one
+	 * the console holds while changing a setting.
+	 * 
+	 * @param settings the parsed configuration file
+	 * @return <code>true</code> if the configuration changed
+	 * @throws IllegalArgumentException if the configuration is invalid
+	 */
+	public boolean reload(IniParser settings) {
+		ServerConfig next = ServerConfig.fromSettings(settings);
+		ServerConfig current = config;
+		
+		if (!Arrays.equals(next.getServerIp(), current.getServerIp())) {
+			log.text(Level.WARN, "The server_ip can't be changed without a restart, still using "
+			    + Tools.byteToIp(current.getServerIp()));
+			
+			next = next.withServerIp(current.getServerIp());
+		}
+		
+		log.configure(settings);
+		applyTimes(settings);
+		
+		synchronized (Application.class) {
+			Application.settings = settings;
+			
+			if (next.equals(current))
+				return false;
+			
+			Application.apply(next);
+			setConfig(next);
+		}
+		
+		int migrated = 0;
+		synchronized (adresses) {
+			Iterator<Lease> it = adresses.values().iterator();
+			
+			while (it.hasNext()) {
+				Lease l = it.next();
+				
+				if (!l.isManual() && (!next.inRange(l.getIp()) || next.isReserved(l.getIp()))) {
+					it.remove();
+					migrated++;
+				}
+			}
+		}
+		
+		if (migrated > 0) {
+			final int count = migrated;
+			log.text(Level.INFO, () -> count + " lease(s) outside of the range or on a reserved "
+			    + "adress removed, the clients get a new adress on their next renewal.");
+		}
+		
+		return true;
+	}
+	
 	@Override
 	public void abort() {
 		lease_timer.abort();
@@ -400,60 +525,375 @@ public class Server extends MyThread {
 	 * @param m the request received from the client
 	 */
 	private void answerRequest(DHCPMessage m) {
+		ServerConfig config = this.config;
+		Scope scope = selectScope(m, config);
+		if (scope == null)
+			return;
+		
+		Reservation host = findReservation(m, config);
+		
+		if (host != null) {
+			byte[] ip = m.getOption(DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED);
+			if (ip == null)
+				ip = m.getCiaddr();
+			
+			// the reserved adress is useless on another network
+			if (!config.isHome(host, scope))
+				sendNAck(m, new byte[4]);
+			else if (Tools.byteToInt(ip) == 0 || Arrays.equals(ip, host.getIp())) {
+				sendAck(m, host.getIp(), host.getAckOptions());
+				acks.incrementAndGet();
+			}
+			else
+				sendNAck(m, new byte[4]);
+			
+			return;
+		}
+		
 		String mac = Tools.byteToMac(m.getChaddr());
+		Lease lease = findLease(m, mac);
 		
-		if (adresses.containsKey(mac)) {
-			sendAck(m, adresses.get(mac).getIp(), false);
-			adresses.get(mac).refreshLease();
+		if (lease != null && !lease.isManual() && !scope.inRange(lease.getIp())) {
+			// the client moved into another class or network, it has to get
+			// a new adress
+			removeLeaseIfNotManual(mac);
+			sendNAck(m, new byte[4]);
+			return;
+		}
+		
+		if (lease != null) {
+			sendAck(m, lease.getIp(), scope.getAckOptions());
+			acks.incrementAndGet();
+			lease.refreshLease();
 			return;
 		}
 		
 		byte[] ip = m.getOption(DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED);
 		
-		if (ip == null || !isIpFree(Tools.byteToIp(ip))) {
+		AllocationEvent allocation = new AllocationEvent();
+		allocation.begin();
+		boolean free = ip != null && scope.inRange(ip) && !config.isReserved(ip)
+		    && !quarantine.contains(ip) && isIpFree(Tools.byteToIp(ip))
+		    && !pending.isOffered(ip, mac);
+		allocation.complete(m, free ? ip : null);
+		
+		if (!free) {
 			ip = new byte[4];
 			
 			sendNAck(m, ip);
 		}
 		else {
-			sendAck(m, ip, false);
+			sendAck(m, ip, scope.getAckOptions());
+			acks.incrementAndGet();
 			
-			synchronized (adresses) {
-				adresses.put(Tools.byteToMac(m.getChaddr()), new Lease(ip));
-			}
+			grantLease(mac, ip);
+			pending.remove(mac);
 		}
 		
 		return;
 	}
 	
+	/**
+	 * Private method which handles a DHCPDECLINE message: the client found
+	 * its adress in use by another device. The adress is put into
+	 * quarantine and the lease or the offer of the client is removed. Only
+	 * the adress leased or offered to the client itself is accepted, so a
+	 * client can't block the adresses of others.
+	 * 
+	 * @param m the decline received from the client
+	 */
+	private void answerDecline(DHCPMessage m) {
+		String mac = Tools.byteToMac(m.getChaddr());
+		byte[] ip = m.getOption(DHCPOptions.OPTION_DHCP_IP_ADRESS_REQUESTED);
+		if (ip == null || ip.length != 4) {
+			// old clients send the adress as ciaddr
+			ip = m.getCiaddr();
+		}
+		
+		Lease lease;
+		synchronized (adresses) {
+			lease = adresses.get(mac);
+		}
+		
+		if ((lease == null || !Arrays.equals(lease.getIp(), ip))
+		    && !Arrays.equals(pending.get(mac), ip)) {
+			if (log.isEnabled(Level.DEBUG)) {
+				log.text(Level.DEBUG, "Decline from " + mac + " ignored, the adress is not its own");
+			}
+			return;
+		}
+		
+		removeLeaseIfNotManual(mac);
+		pending.remove(mac);
+		quarantine.add(ip);
+		
+		byte[] declined = ip;
+		log.text(Level.WARN, () -> Tools.byteToIp(declined) + " is in use by another device, "
+		    + "declined by " + mac + " and not offered for a while");
+	}
+	
+	/**
+	 * Private method which answers a DHCPINFORM message with the options
+	 * of the class or the reservation of the client.
+	 * 
+	 * @param m the inform received from the client
+	 */
+	private void answerInform(DHCPMessage m) {
+		ServerConfig config = this.config;
+		Scope scope = selectScope(m, config);
+		if (scope == null)
+			return;
+		
+		Reservation host = findReservation(m, config);
+		if (host != null && !config.isHome(host, scope))
+			host = null;
+		
+		sendAck(m, new byte[4], host != null ? host.getInformOptions()
+		    : scope.getInformOptions());
+	}
+	
+	/**
+	 * Selects the scope of the client which sent the given message by the
+	 * network it is attached to, its vendor class identifier and its user
+	 * class. The network is the one of the relay agent, or the one of the
+	 * adress of a renewing client which sends its requests directly to the
+	 * server.
+	 * 
+	 * @param m the message received from the client
+	 * @param config the configuration holding the subnets and classes
+	 * @return the scope of the client or <code>null</code> if the message
+	 *         came from an unknown network and is not answered
+	 */
+	private Scope selectScope(DHCPMessage m, ServerConfig config) {
+		byte[] link = findLink(m);
+		Scope scope = config.select(link, m.getCiaddr(),
+		    m.getOption(DHCPOptions.OPTION_DHCP_CLASS_IDENTIFIER),
+		    m.getOption(ClassMatcher.OPTION_USER_CLASS));
+		
+		if (scope == null && log.isEnabled(Level.DEBUG)) {
+			log.text(Level.DEBUG, "No subnet for " + Tools.byteToIp(link) + ", "
+			    + Tools.byteToMac(m.getChaddr()) + " ignored");
+		}
+		
+		return scope;
+	}
+	
+	/**
+	 * Returns an adress of the network the client is attached to, as told
+	 * by the relay agent. The subnet selection option (118, RFC 3011) is
+	 * used first, then the link selection suboption of the relay agent
+	 * information (82, RFC 3527), then the adress of the relay (giaddr).
+	 * 
+	 * @param m the message received from the client
+	 * @return the adress or 0.0.0.0 if the message was not relayed
+	 */
+	static byte[] findLink(DHCPMessage m) {
+		byte[] selection = m.getOption(OPTION_SUBNET_SELECTION);
+		if (selection != null && selection.length == 4)
+			return selection;
+		
+		byte[] info = m.getOption(OPTION_RELAY_AGENT_INFORMATION);
+		if (info != null) {
+			for (int i = 0; i + 1 < info.length; i += 2 + (0xFF & info[i + 1])) {
+				if (info[i] == SUBOPTION_LINK_SELECTION && info[i + 1] == 4 && i + 6 <= info.length)
+					return Arrays.copyOfRange(info, i + 2, i + 6);
+			}
+		}
+		
+		return m.getGiaddr();
+	}
+	
+	/**
+	 * Looks up the reservation of the client which sent the given message,
+	 * by its client identifier or its mac adress.
+	 * 
+	 * @param m the message received from the client
+	 * @param config the configuration holding the reservations
+	 * @return the reservation or <code>null</code> if the client has none
+	 */
+	private Reservation findReservation(DHCPMessage m, ServerConfig config) {
+		if (config.getReservations().isEmpty())
+			return null;
+		
+		byte[] id = m.getOption(DHCPOptions.OPTION_DHCP_CLIENT_IDENTIFIER);
+		Reservation host = null;
+		
+		if (id != null) {
+			host = config.getReservation(Reservation.clientId(id));
+		}
+		if (host == null) {
+			host = config.getReservation(Tools.byteToMac(m.getChaddr()));
+		}
+		
+		return host;
+	}
+	
+	/**
+	 * Looks up the current lease of the client which sent the given message.
+	 * 
+	 * @param m the message received from the client
+	 * @param mac the mac adress of the client
+	 * @return the lease of the client or <code>null</code> if it has none
+	 */
+	private Lease findLease(DHCPMessage m, String mac) {
+		LeaseLookupEvent lookup = new LeaseLookupEvent();
+		lookup.begin();
+		
+		Lease lease = getValidLease(mac);
+		
+		lookup.found = lease != null;
+		lookup.complete(m);
+		
+		return lease;
+	}
+	
+	/**
+	 * Returns the lease of a client. A lease which expired but was not
+	 * removed by the lease timer yet is removed now: its adress counts as
+	 * free already and may be given to another client, so it must not be
+	 * renewed.
+	 * 
+	 * @param mac the mac adress of the client
+	 * @return the lease or <code>null</code> if the client has no valid
+	 *         lease
+	 */
+	private Lease getValidLease(String mac) {
+		synchronized (adresses) {
+			Lease lease = adresses.get(mac);
+			
+			if (lease == null || lease.isManual() || lease.isValid())
+				return lease;
+			
+			log.lease(EventLog.EVENT_EXPIRED, lease.getIp());
+			adresses.remove(mac);
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * Leases an adress to a client, starting now. Expired leases of other
+	 * clients on the same adress, which the lease timer didn't remove
+	 * yet, are removed, so the adress is in the lease table only once.
+	 * 
+	 * @param mac the mac adress of the client
+	 * @param ip the adress to lease, it has to be free
+	 */
+	private void grantLease(String mac, byte[] ip) {
+		synchronized (adresses) {
+			Iterator<Lease> it = adresses.values().iterator();
+			
+			while (it.hasNext()) {
+				Lease l = it.next();
+				
+				if (!l.isManual() && !l.isValid() && Arrays.equals(l.getIp(), ip)) {
+					log.lease(EventLog.EVENT_EXPIRED, l.getIp());
+					it.remove();
+				}
+			}
+			
+			adresses.put(mac, new Lease(ip));
+		}
+	}
+	
+	/**
+	 * Helper method to get the ip adress of the given mac, or
+	 * if unknown the next free ip in the global range.
+	 * 
+	 * @param mac the mac adress to look up
+	 * @return a new ip adress or an empty byte[] if no more ip adresses
+	 *         are left.
+	 */
+	byte[] getNextFreeIp(String mac) {
+		return getNextFreeIp(mac, config.getScope());
+	}
+	
 	/**
 	 * Helper method to get the ip adress of the given mac, or
-	 * if unknown the next free ip in our range.
+	 * if unknown the next free ip in the range of the given scope.
 	 * 
 	 * @param mac the mac adress to look up
+	 * @param scope the scope to allocate from
 	 * @return a new ip adress or an empty byte[] if no more ip adresses
 	 *         are left.
 	 */
-	private synchronized byte[] getNextFreeIp(String mac) {
+	synchronized byte[] getNextFreeIp(String mac, Scope scope) {
+		Lease lease = getValidLease(mac);
+		if (lease != null)
+			return lease.getIp();
+		
+		Pool pool = scope.getPool();
+		long first = pool.first();
+		
+		// one pass over the leases instead of one per adress, the same
+		// leases count as in isIpFree()
+		taken.clear();
 		synchronized (adresses) {
-			if (adresses.containsKey(mac))
-				return adresses.get(mac).getIp();
+			for (Lease akt : adresses.values()) {
+				int ip = Tools.byteToInt(akt.getIp());
+				
+				if ((akt.isValid() || akt.isManual()) && pool.contains(ip))
+					taken.set((int) (Pool.unsigned(ip) - first));
+			}
+		}
+		
+		// excluded and reserved adresses are skipped without looking at the
+		// leases
+		for (long ip = first; ip >= 0; ip = pool.next(ip + 1)) {
+			byte[] back = Tools.intToByte((int) ip);
+			
+			if (ip != 0 && !taken.get((int) (ip - first)) && !scope.isReserved(back)
+			    && !quarantine.contains(back) && !pending.isOffered(back, mac))
+				return back;
 		}
 		
-		byte[] back = Application.getFirstIp().clone();
-		String ip = Tools.byteToIp(back);
+		return new byte[] {
+		    0, 0, 0, 0
+		};
+	}
+	
+	/**
+	 * Returns the ip adress of the client which sent the given message. If
+	 * the client has no valid lease in the range of its scope, the adress
+	 * already offered to it or the next free ip of the scope is returned.
+	 * An expired lease is removed by {@link #findLease(DHCPMessage, String)}
+	 * and never offered again, the adress may belong to another client.
+	 * 
+	 * @param m the message received from the client
+	 * @param scope the scope of the client
+	 * @return the ip adress to offer or an empty byte[] if no more ip
+	 *         adresses are left.
+	 */
+	private byte[] findOrAllocateIp(DHCPMessage m, Scope scope) {
+		String mac = Tools.byteToMac(m.getChaddr());
+		Lease lease = findLease(m, mac);
 		
-		while (!isIpFree(ip)) {
-			back = iprange.nextIp(back);
-			ip = Tools.byteToIp(back);
+		if (lease != null) {
+			if (lease.isManual() || scope.inRange(lease.getIp()))
+				return lease.getIp();
+			
+			// the client moved into another class
+			removeLeaseIfNotManual(mac);
 		}
 		
-		if (iprange.inRange(back))
-			return back;
-		else
-			return new byte[] {
-			    0, 0, 0, 0
-			};
+		byte[] offered = pending.get(mac);
+		if (offered != null && scope.inRange(offered))
+			return offered;
+		
+		AllocationEvent allocation = new AllocationEvent();
+		allocation.begin();
+		byte[] ip = getNextFreeIp(mac, scope);
+		allocation.complete(m, ip);
+		
+		return ip;
+	}
+	
+	/**
+	 * Checks the leases once and deletes the expired ones, the same as the
+	 * lease timer does every second.
+	 */
+	void checkLeases() {
+		lease_timer.check();
 	}
 	
 	/**
@@ -479,50 +919,108 @@ public class Server extends MyThread {
 		return back;
 	}
 	
+	/**
+	 * Receives one request from the transport and answers it. Called by
+	 * the server thread, package private so harnesses can drive the server
+	 * without starting the thread.
+	 * 
+	 * @return <code>true</code> if a request was handled,
+	 *         <code>false</code> if the transport timed out.
+	 */
+	boolean serveOnce() {
+		DHCPMessage anfrage = new DHCPMessage();
+		
+		if (!transport.receive(anfrage))
+			return false;
+		
+		handleRequest(anfrage);
+		return true;
+	}
+	
 	/**
 	 * Private method which handles an incoming dhcp request from a client.
 	 * 
 	 * @param m the message to interprete
 	 */
 	private void handleRequest(DHCPMessage m) {
+		RequestEvent event = new RequestEvent();
+		event.begin();
+		
 		byte message_type = m.getOption(DHCPOptions.OPTION_DHCP_MESSAGE_TYPE)[0];
-		String mac = Tools.byteToMac(m.getChaddr());
-		String hostname = null;
-		// udhcpc doesn't send this option -> Nullpointer exception
-		if (m.getOption(DHCPOptions.OPTION_HOSTNAME) != null) {
-			hostname = new String(m.getOption(DHCPOptions.OPTION_HOSTNAME));
-		}
-		String ident = mac;
-		
-		if(hostname != null && hostname.length() > 0)
-			ident += " (" + hostname + ")";
-		
-		switch (message_type) {
-			case DHCPMessage.DHCPDISCOVER:
-				message("DHCPDISCOVER from " + ident);
-				sendDiscover(m);
-				break;
-			case DHCPMessage.DHCPREQUEST:
-				message("DHCPREQUEST from " + ident);
-				answerRequest(m);
-				break;
-			case DHCPMessage.DHCPDECLINE:
-				message("DHCPDECLINE from " + ident);
-				adresses.put(String.valueOf(System.currentTimeMillis()), 
-						new Lease(Tools.ipToByte(Tools.byteToIp(m.getCiaddr()))));
-				removeLeaseIfNotManual(Tools.byteToMac(m.getChaddr()));
-				break;
-			case DHCPMessage.DHCPRELEASE:
-				message("DHCPRELEASE from " + ident);
-				removeLeaseIfNotManual(Tools.byteToMac(m.getChaddr()));
-				break;
-			case DHCPMessage.DHCPINFORM:
-				sendAck(m, new byte[4], true);
-				break;
-			default:
-				message("Received packet is an unhandled case. Message Type: "
-				    + (int) message_type);
-				break;
+		
+		ReplyCache.Reply cached = replies.begin(m);
+		if (cached != null) {
+			resend(m, cached);
+			event.complete(m);
+			return;
+		}
+		
+		try {
+			switch (message_type) {
+				case DHCPMessage.DHCPDISCOVER:
+					log.client(message_type, m);
+					sendDiscover(m);
+					break;
+				case DHCPMessage.DHCPREQUEST:
+					log.client(message_type, m);
+					answerRequest(m);
+					break;
+				case DHCPMessage.DHCPDECLINE:
+					log.client(message_type, m);
+					answerDecline(m);
+					break;
+				case DHCPMessage.DHCPRELEASE:
+					log.client(message_type, m);
+					removeLeaseIfNotManual(Tools.byteToMac(m.getChaddr()));
+					pending.remove(Tools.byteToMac(m.getChaddr()));
+					break;
+				case DHCPMessage.DHCPINFORM:
+					log.client(message_type, m);
+					answerInform(m);
+					break;
+				default:
+					log.unhandled(m.getChaddr(), message_type);
+					break;
+			}
+		}
+		finally {
+			// a request which got no reply is not answered from the cache
+			replies.end(m);
+		}
+		
+		event.complete(m);
+	}
+	
+	/**
+	 * Answers a retransmitted request with the reply to the first one. If
+	 * the first one is still answered, the retransmission is dropped.
+	 * 
+	 * @param m the retransmitted request
+	 * @param cached the reply to the first request or
+	 *        {@link ReplyCache#PENDING}
+	 */
+	private void resend(DHCPMessage m, ReplyCache.Reply cached) {
+		if (cached == ReplyCache.PENDING) {
+			if (log.isEnabled(Level.DEBUG)) {
+				log.text(Level.DEBUG, "Retransmission from " + Tools.byteToMac(m.getChaddr())
+				    + " dropped, the request is answered already");
+			}
+			return;
+		}
+		
+		try {
+			transport.send(cached.getData(), cached.getData().length, cached.getAddress(),
+			    cached.getPort());
+		}
+		catch (IOException e) {
+			log.error(e);
+			
+			return;
+		}
+		
+		if (log.isEnabled(Level.DEBUG)) {
+			log.text(Level.DEBUG, "Retransmission from " + Tools.byteToMac(m.getChaddr())
+			    + " answered with the cached reply");
 		}
 	}
 	
@@ -541,17 +1039,18 @@ public class Server extends MyThread {
 	
 	/**
 	 * Checks wheter the given ip adress is not in use. Does a lookup
-	 * in our HashTable {@link #adresses}.
+	 * in our HashTable {@link #adresses}. Expired leases don't count,
+	 * manual leases are never removed and always count.
 	 * 
 	 * @param ip the ip adress to check
 	 * @return is the given ip free?
 	 */
-	private boolean isIpFree(String ip) {
+	boolean isIpFree(String ip) {
 		if (ip == null || ip.equals("0.0.0.0"))
 			return false;
 		
 		for (Lease akt : adresses.values()) {
-			if (akt.getIpString().equals(ip) && akt.isValid()) {
+			if (akt.getIpString().equals(ip) && (akt.isValid() || akt.isManual())) {
 				return false;
 			}
 		}
@@ -566,6 +1065,9 @@ public class Server extends MyThread {
 	 * @throws IOException If anything fails while reading the file.
 	 */
 	public void loadLeases(File f) throws IOException {
+		PersistEvent event = new PersistEvent();
+		event.begin();
+		
 		lease_timer.pause(true);
 		synchronized (adresses) {
 			adresses.clear();
@@ -581,26 +1083,96 @@ public class Server extends MyThread {
 				
 				adresses.put(parts[0], new Lease(parts[1], parts[2]));
 			}
+			
+			event.leases = adresses.size();
 		}
 		lease_timer.pause(false);
+		
+		event.operation = "load";
+		event.file = f.getPath();
+		event.commit();
 	}
 	
 	/**
-	 * Helper method. Sends a message to the observer.
+	 * Helper method. Sends a message to the listeners of the log.
 	 * @param m the message to send
 	 */
 	public void message(String m) {
-		setChanged();
-		notifyObservers(m);
+		log.text(m);
+	}
+	
+	/**
+	 * @return the packet capture of this server or <code>null</code> if
+	 *         capturing is disabled.
+	 */
+	public PacketCapture getCapture() {
+		return capture;
+	}
+	
+	/**
+	 * @return number of DHCPOFFERs sent since the server was created
+	 */
+	public long getOffers() {
+		return offers.get();
+	}
+	
+	/**
+	 * @return number of DHCPACKs sent for a DHCPREQUEST, including
+	 *         renewals
+	 */
+	public long getAcks() {
+		return acks.get();
+	}
+	
+	/**
+	 * @return number of leases assigned by rapid commit, without a
+	 *         DHCPOFFER and a DHCPREQUEST
+	 */
+	public long getRapidCommits() {
+		return rapid_commits.get();
+	}
+	
+	/**
+	 * @return number of adresses offered to clients which didn't request
+	 *         them yet
+	 */
+	public int getPendingOffers() {
+		return pending.size();
+	}
+	
+	/**
+	 * @return number of declined adresses in quarantine
+	 */
+	public int getQuarantined() {
+		return quarantine.size();
+	}
+	
+	/**
+	 * @return number of retransmitted requests which were answered with
+	 *         the cached reply or dropped while the first one was answered
+	 */
+	public long getRetransmissions() {
+		return replies.getHits();
+	}
+	
+	/**
+	 * @return the log of this server, add a listener to receive the
+	 *         messages.
+	 */
+	public EventLog getEventLog() {
+		return log;
 	}
 	
 	/**
-	 * Deletes all leases and removes the clients.
+	 * Deletes all leases and pending offers, releases the declined
+	 * adresses and removes the clients.
 	 */
 	public void removeAll() {
 		synchronized (adresses) {
 			adresses.clear();
 		}
+		pending.clear();
+		quarantine.clear();
 	}
 	
 	/**
@@ -616,7 +1188,7 @@ public class Server extends MyThread {
 				
 				if (lease != null) {
 					adresses.remove(c);
-					message("Client " + c + " (" + lease.getIpString() + ") removed.");
+					log.text(Level.INFO, () -> "Client " + c + " (" + lease.getIpString() + ") removed.");
 				}
 			}
 			else { // IP
@@ -630,8 +1202,9 @@ public class Server extends MyThread {
 				}
 				
 				if (toDelete != null) {
-					adresses.remove(toDelete);
-					message("Client " + toDelete + " (" + c + ") removed.");
+					final String mac = toDelete;
+					adresses.remove(mac);
+					log.text(Level.INFO, () -> "Client " + mac + " (" + c + ") removed.");
 				}
 			}
 		}
@@ -639,38 +1212,67 @@ public class Server extends MyThread {
 	
 	@Override
 	public void run() {
-		message("Server started on " + Tools.byteToIp(Application.getServerIp()));
+		log.start();
+		message("Server started on " + Tools.byteToIp(config.getServerIp()));
 		
 		try {
 			//This is needed if the host has more than one active network card (Tested on Windows)
-			socket = new DHCPSocket(DHCPMessage.SERVER_PORT,  Tools.byteToIp(Application.getServerIp()));
-			//socket = new DHCPSocket(DHCPMessage.SERVER_PORT);
+			if (transport == null) {
+				String address = Tools.byteToIp(config.getServerIp());
+				
+				if (transport_type.equalsIgnoreCase("nio")) {
+					transport = new NioTransport(DHCPMessage.SERVER_PORT, address, capture);
+				}
+				else {
+					DHCPSocket socket = new DHCPSocket(DHCPMessage.SERVER_PORT, address);
+					//socket = new DHCPSocket(DHCPMessage.SERVER_PORT);
+					
+					transport = new UdpTransport(socket, capture);
+				}
+				
+				if (capture != null) {
+					capture.start();
+					message("Capturing packets into " + capture.getFile());
+				}
+			}
+			
+			if (watcher != null) {
+				watcher.start();
+			}
 			adresses.clear();
 		}
 		catch (IOException e) {
-			setChanged();
-			notifyObservers(e);
+			log.error(e);
 			
-			message("Server aborted on " + Tools.byteToIp(Application.getServerIp()));
+			message("Server aborted on " + Tools.byteToIp(config.getServerIp()));
+			log.abort();
 			return;
 		}
 		
 		lease_timer.start();
 		while (doContinueWork()) {
-			DHCPMessage anfrage = new DHCPMessage();
-			
-			if (socket.receive(anfrage))
-				handleRequest(anfrage);
+			serveOnce();
 		}
 		lease_timer.abort();
 		
-		socket.close();
-		socket = null;
+		if (watcher != null) {
+			watcher.abort();
+			watcher.waitTillDone();
+		}
+		
+		if (capture != null) {
+			capture.abort();
+			capture.waitTillDone();
+		}
+		
+		transport.close();
+		transport = null;
 		adresses.clear();
 		adresses = null;
-		iprange = null;
 		
-		message("Server closed on " + Tools.byteToIp(Application.getServerIp()));
+		message("Server closed on " + Tools.byteToIp(config.getServerIp()));
+		log.abort();
+		log.waitTillDone();
 	}
 	
 	/**
@@ -680,6 +1282,9 @@ public class Server extends MyThread {
 	 * @throws IOException If anything fails while writing the file.
 	 */
 	public void saveLeases(File f) throws IOException {
+		PersistEvent event = new PersistEvent();
+		event.begin();
+		
 		lease_timer.pause(true);
 		synchronized (adresses) {
 			PrintWriter pw = new PrintWriter(f);
@@ -696,129 +1301,141 @@ public class Server extends MyThread {
 			
 			pw.flush();
 			pw.close();
+			
+			event.leases = adresses.size();
 		}
 		lease_timer.pause(false);
+		
+		event.operation = "save";
+		event.file = f.getPath();
+		event.commit();
 	}
 	
 	/**
-	 * Sends a DHCPACK message with the given ip adress. if unicast is not
-	 * set, the options <code>LEASETIME</code> and <code>RENEWAL_TIME</code>
-	 * are set in the answer.
+	 * Sends a DHCPACK message with the given ip adress. The options the
+	 * client asked for in its parameter request list are copied as one
+	 * pre-encoded block.
 	 * 
 	 * @param m the message to answer
-	 * @param ip the ip adress of the new client
-	 * @param unicast should the message be sent via the given ip adress?
-	 *                If <code>false</code> the message is sent via broadcast
-	 *                to all clients.
+	 * @param ip the ip adress of the new client, 0.0.0.0 when answering a
+	 *           DHCPINFORM
+	 * @param options the options of the configuration or of the
+	 *                reservation of the client
 	 */
-	private void sendAck(DHCPMessage m, byte[] ip, boolean unicast) {
-		DHCPMessage back = new DHCPMessage();
+	private void sendAck(DHCPMessage m, byte[] ip, OptionSet options) {
+		DHCPMessage back = createReply(m, DHCPMessage.DHCPACK);
 		
-		back.setOp(DHCPMessage.OP_REPLY);
-		back.setHtype(m.getHtype());
-		back.setHlen(m.getHlen());
-		back.setHops((byte) 0);
-		back.setXid(m.getXid());
-		back.setFlags(m.getFlags());
 		back.setYiaddr(ip);
-		back.setChaddr(m.getChaddr());
-		back.setOption(DHCPOptions.OPTION_NETMASK, Application.getNetmask());
-		if (!unicast) {
-			back.setOption(DHCPOptions.OPTION_DHCP_IP_LEASE_TIME, Application.getLeaseTime());
-			back.setOption(DHCPOptions.OPTION_DHCP_RENEWAL_TIME, Application.getRenewalTime());
-		}
-		back.setOption(DHCPOptions.OPTION_DHCP_MESSAGE_TYPE, new byte[] {
-			DHCPMessage.DHCPACK
-		});
-		
-		if(Application.getDNSServers().length > 4) {
-			back.setOption(DHCPOptions.OPTION_DNS_SERVERS, Application.getDNSServers());
-		}
+		back.setEncodedOptions(options.select(
+		    m.getOption(DHCPOptions.OPTION_DHCP_PARAMETER_REQUEST_LIST)));
 		
 		try {
+			EncodeEvent encode = new EncodeEvent();
+			encode.begin();
 			byte[] data = back.externalize();
+			encode.complete(back);
 			
-			if (!unicast) {
-				socket.send(new DatagramPacket(data, data.length,
-				    DHCPMessage.BROADCAST_ADDR, DHCPMessage.CLIENT_PORT));
-			}
-			else {
-				InetAddress unicast_addr = null;
-				
-				try {
-					unicast_addr = InetAddress.getByAddress(ip);
-				}
-				catch (UnknownHostException e) {
-					setChanged();
-					notifyObservers(e);
-				}
-				
-				socket.send(new DatagramPacket(data, data.length, 
-						unicast_addr, DHCPMessage.CLIENT_PORT));
-			}
+			send(m, data, false);
 		}
 		catch (IOException e) {
-			setChanged();
-			notifyObservers(e);
+			log.error(e);
 			
 			return;
 		}
 		
-		message("DHCPACK to " + Tools.byteToMac(m.getChaddr()) + " for IP "
-		    + Tools.byteToIp(ip));
+		log.reply(DHCPMessage.DHCPACK, m.getChaddr(), ip);
 	}
 	
 	/**
-	 * Answers a DHCPDISCOVER message and offers a new ip adress to the client
+	 * Answers a DHCPDISCOVER message and offers a new ip adress to the client.
+	 * If the client asks for rapid commit and its scope allows it, the
+	 * adress is assigned at once by a DHCPACK carrying the rapid commit
+	 * option, the client sends no DHCPREQUEST (RFC 4039).
 	 * 
 	 * @param m the message to answer.
 	 */
 	private void sendDiscover(DHCPMessage m) {
-		DHCPMessage back = new DHCPMessage();
+		ServerConfig config = this.config;
+		Scope scope = selectScope(m, config);
+		if (scope == null)
+			return;
 		
-		back.setOp(DHCPMessage.OP_REPLY);
-		back.setHtype(m.getHtype());
-		back.setHlen(m.getHlen());
-		back.setHops((byte) 0);
-		back.setXid(m.getXid());
-		back.setFlags(m.getFlags());
-		back.setYiaddr(getNextFreeIp(Tools.byteToMac(m.getChaddr())));
-		back.setChaddr(m.getChaddr());
-		back.setOption(DHCPOptions.OPTION_NETMASK, Application.getNetmask());
-		back.setOption(DHCPOptions.OPTION_DHCP_MESSAGE_TYPE, new byte[] {
-			DHCPMessage.DHCPOFFER
-		});
-		//This is needed by e.g. udhcpc
-		back.setOption(DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER, Application.server_ip);
+		Reservation host = findReservation(m, config);
+		if (host != null && !config.isHome(host, scope)) {
+			// offer nothing, the reserved adress is useless on another network
+			log.text(Level.DEBUG, () -> Tools.byteToMac(m.getChaddr())
+			    + " is reserved on another network, ignored");
+			return;
+		}
+		
+		boolean rapid = scope.isRapidCommit() && m.IsOptSet(OPTION_RAPID_COMMIT);
+		DHCPMessage back = createReply(m, rapid ? DHCPMessage.DHCPACK : DHCPMessage.DHCPOFFER);
 		
-		if(Application.getDNSServers().length > 4) {
-			back.setOption(DHCPOptions.OPTION_DNS_SERVERS, Application.getDNSServers());
+		back.setYiaddr(host != null ? host.getIp() : findOrAllocateIp(m, scope));
+		OptionSet options;
+		
+		if (rapid) {
+			options = host != null ? host.getAckOptions() : scope.getAckOptions();
+			
+			back.setOption(OPTION_RAPID_COMMIT, new byte[0]);
+		}
+		else {
+			options = host != null ? host.getOfferOptions() : scope.getOfferOptions();
 		}
+		back.setEncodedOptions(options.select(
+		    m.getOption(DHCPOptions.OPTION_DHCP_PARAMETER_REQUEST_LIST)));
 		
 		if (back.getYiaddr()[0] == (byte) 0) {
-			message("No more IPs left to serve client "
-			    + Tools.byteToMac(m.getChaddr()));
+			log.client(EventLog.EVENT_NO_FREE_IP, m.getChaddr(), null);
 			return;
 		}
 		
 		try {
+			EncodeEvent encode = new EncodeEvent();
+			encode.begin();
 			byte[] data = back.externalize();
-			socket.send(new DatagramPacket(data, data.length,
-			    DHCPMessage.BROADCAST_ADDR, DHCPMessage.CLIENT_PORT));
+			encode.complete(back);
+			
+			send(m, data, false);
 		}
 		catch (IOException e) {
-			setChanged();
-			notifyObservers(e);
+			log.error(e);
 			
 			return;
 		}
 		
-		synchronized (adresses) {
-			adresses.put(Tools.byteToMac(m.getChaddr()), new Lease(back.getYiaddr()));
+		if (host == null) {
+			String mac = Tools.byteToMac(m.getChaddr());
+			
+			// an offer only holds the adress until the client requests it, a
+			// client which already has a lease keeps it
+			synchronized (adresses) {
+				Lease lease = getValidLease(mac);
+				
+				if (rapid && lease != null) {
+					lease.refreshLease();
+				}
+				else if (rapid) {
+					grantLease(mac, back.getYiaddr());
+				}
+				else if (lease == null) {
+					pending.offer(mac, back.getYiaddr());
+				}
+			}
+			
+			if (rapid) {
+				pending.remove(mac);
+			}
 		}
 		
-		message("DHCPOFFER to " + Tools.byteToMac(m.getChaddr()) + " for IP "
-		    + Tools.byteToIp(back.getYiaddr()));
+		if (rapid) {
+			rapid_commits.incrementAndGet();
+			log.reply(DHCPMessage.DHCPACK, m.getChaddr(), back.getYiaddr());
+		}
+		else {
+			offers.incrementAndGet();
+			log.reply(DHCPMessage.DHCPOFFER, m.getChaddr(), back.getYiaddr());
+		}
 		
 		return;
 	}
@@ -830,6 +1447,41 @@ public class Server extends MyThread {
 	 * @param ip the ip adress to send the message to
 	 */
 	private void sendNAck(DHCPMessage m, byte[] ip) {
+		DHCPMessage back = createReply(m, DHCPMessage.DHCPNAK);
+		
+		back.setYiaddr(ip);
+		if (Tools.byteToInt(m.getGiaddr()) != 0) {
+			// the relay has to broadcast the DHCPNAK (RFC 2131, 4.3.2)
+			back.setFlags((short) (m.getFlags() | 0x8000));
+		}
+		
+		try {
+			EncodeEvent encode = new EncodeEvent();
+			encode.begin();
+			byte[] data = back.externalize();
+			encode.complete(back);
+			
+			send(m, data, true);
+		}
+		catch (IOException e) {
+			log.error(e);
+			
+			return;
+		}
+		
+		log.reply(DHCPMessage.DHCPNAK, m.getChaddr(), null);
+	}
+	
+	/**
+	 * Creates a reply to the given message with the fields all replies
+	 * share. The relay agent information is copied into the reply, the
+	 * relay removes it before the reply is forwarded (RFC 3046).
+	 * 
+	 * @param m the message to answer
+	 * @param type the type of the reply
+	 * @return the reply
+	 */
+	private DHCPMessage createReply(DHCPMessage m, byte type) {
 		DHCPMessage back = new DHCPMessage();
 		
 		back.setOp(DHCPMessage.OP_REPLY);
@@ -838,24 +1490,56 @@ public class Server extends MyThread {
 		back.setHops((byte) 0);
 		back.setXid(m.getXid());
 		back.setFlags(m.getFlags());
-		back.setYiaddr(ip);
+		back.setGiaddr(m.getGiaddr());
 		back.setChaddr(m.getChaddr());
 		back.setOption(DHCPOptions.OPTION_DHCP_MESSAGE_TYPE, new byte[] {
-			DHCPMessage.DHCPNAK
+			type
 		});
 		
-		try {
-			byte[] data = back.externalize();
-			socket.send(new DatagramPacket(data, data.length,
-			    DHCPMessage.BROADCAST_ADDR, DHCPMessage.CLIENT_PORT));
+		byte[] info = m.getOption(OPTION_RELAY_AGENT_INFORMATION);
+		if (info != null) {
+			back.setOption(OPTION_RELAY_AGENT_INFORMATION, info);
 		}
-		catch (IOException e) {
-			setChanged();
-			notifyObservers(e);
-			
-			return;
+		
+		return back;
+	}
+	
+	/**
+	 * Sends a reply following RFC 2131, 4.1:
+	 * <ul>
+	 * <li>a reply to a message which came through a relay agent is sent to
+	 * the relay on the server port, the relay forwards it to the client</li>
+	 * <li>a client which already has an adress (ciaddr) gets the reply via
+	 * unicast, except a DHCPNAK</li>
+	 * <li>all other replies are broadcast</li>
+	 * </ul>
+	 * A client without an adress which cleared the broadcast flag could be
+	 * reached by unicast to yiaddr only by adding its mac adress to the arp
+	 * cache, which a java socket can't do. Such replies are broadcast as
+	 * well, as the RFC allows.<br>
+	 * The reply is kept in the {@link ReplyCache} for retransmissions of
+	 * the request.
+	 * 
+	 * @param m the message which is answered
+	 * @param data the encoded reply
+	 * @param nak is the reply a DHCPNAK?
+	 * @throws IOException if the reply could not be sent
+	 */
+	private void send(DHCPMessage m, byte[] data, boolean nak) throws IOException {
+		byte[] giaddr = m.getGiaddr();
+		byte[] ciaddr = m.getCiaddr();
+		InetAddress address = DHCPMessage.BROADCAST_ADDR;
+		int port = DHCPMessage.CLIENT_PORT;
+		
+		if (Tools.byteToInt(giaddr) != 0) {
+			address = InetAddress.getByAddress(giaddr);
+			port = DHCPMessage.SERVER_PORT;
+		}
+		else if (!nak && Tools.byteToInt(ciaddr) != 0) {
+			address = InetAddress.getByAddress(ciaddr);
 		}
 		
-		message("DHCPNACK to " + Tools.byteToMac(m.getChaddr()));
+		transport.send(data, data.length, address, port);
+		replies.put(m, data, address, port);
 	}
 }
@@ -0,0 +1,620 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * Immutable snapshot of the <code>global</code> and the
+ * <code>options</code> section, the subnets and the client classes of the
+ * configuration.
+ * Besides the parsed values it holds the options the server adds to its
+ * replies, already encoded as bytes, so a reply only copies one block
+ * instead of setting every option on its own.<br>
+ * <br>
+ * The server keeps the current snapshot in a volatile field. A change of
+ * the configuration creates a new snapshot and replaces the reference,
+ * a reply which is built at the same time sees either the old or the new
+ * values, never a mix of both.
+ * 
+ * @author sfrankenberger
+ */
+public final class ServerConfig {
+	/**
+	 * The IP-adress of the DHCP-server
+	 */
+	private final byte[] server_ip;
+	
+	/**
+	 * The first IP to offer
+	 */
+	private final byte[] first_ip;
+	
+	/**
+	 * The last IP to offer
+	 */
+	private final byte[] last_ip;
+	
+	/**
+	 * The netmask to announce
+	 */
+	private final byte[] netmask;
+	
+	/**
+	 * The lease time to announce in seconds
+	 */
+	private final int lease_time;
+	
+	/**
+	 * The renewal time to announce in seconds
+	 */
+	private final int renewal_time;
+	
+	/**
+	 * The DNS-Servers to announce, 4 bytes each
+	 */
+	private final byte[] dns_servers;
+	
+	/**
+	 * The encoded options of the <code>options</code> section
+	 */
+	private final byte[] options;
+	
+	/**
+	 * Answer a DHCPDISCOVER with rapid commit by a DHCPACK?
+	 */
+	private final boolean rapid_commit;
+	
+	/**
+	 * The range and the options of clients without a class on the network
+	 * the server is attached to
+	 */
+	private final Scope scope;
+	
+	/**
+	 * The adresses of the global range which are never offered, first
+	 * and last adress of each range
+	 */
+	private final int[] excluded;
+	
+	/**
+	 * The networks reached through relay agents, ordered by name
+	 */
+	private final List<Subnet> subnets;
+	
+	/**
+	 * The row in {@link #scopes} by network prefix
+	 */
+	private final PrefixTrie networks = new PrefixTrie();
+	
+	/**
+	 * The client classes ordered by name
+	 */
+	private final List<ClientClass> classes;
+	
+	/**
+	 * The scopes by network and class. Row 0 is the network the server is
+	 * attached to, row <code>i + 1</code> the subnet <code>i</code>. Column
+	 * 0 is used for clients without a class, column <code>i + 1</code> for
+	 * the class <code>i</code>.
+	 */
+	private final Scope[][] scopes;
+	
+	/**
+	 * Finds the class of a client
+	 */
+	private final ClassMatcher matcher;
+	
+	/**
+	 * The file the reservations were read from, <code>null</code> if none
+	 */
+	private final File reservations_file;
+	
+	/**
+	 * The reservations in the order of the file
+	 */
+	private final List<Reservation> reservations;
+	
+	/**
+	 * The reservations by mac adress or client identifier
+	 */
+	private final HashMap<String, Reservation> hosts;
+	
+	/**
+	 * Creates a new snapshot and encodes the reply options. The arrays are
+	 * copied.
+	 * 
+	 * @param server_ip the ip adress of the server
+	 * @param first_ip the first ip adress to offer
+	 * @param last_ip the last ip adress to offer
+	 * @param netmask the netmask to announce
+	 * @param lease_time the lease time in seconds
+	 * @param renewal_time the renewal time in seconds
+	 * @param dns_servers the dns servers to announce, 4 bytes each
+	 * @param excluded the adresses of the range which are never offered, as
+	 *        returned by {@link Scope#parseRanges(String)}
+	 * @param options further encoded options to announce, they replace the
+	 *        options above with the same code
+	 * @param rapid_commit answer a DHCPDISCOVER with rapid commit by a
+	 *        DHCPACK, subnets and classes may override this
+	 * @param reservations_file the file the reservations were read from
+	 * @param reservations the fixed ip adresses of hosts
+	 * @param subnets the networks reached through relay agents
+	 * @param classes the client classes
+	 * @throws IllegalArgumentException if two reservations have the same
+	 *         key or ip adress, or if two subnets have the same network
+	 */
+	public ServerConfig(byte[] server_ip, byte[] first_ip, byte[] last_ip, byte[] netmask,
+	    int lease_time, int renewal_time, byte[] dns_servers, int[] excluded, byte[] options,
+	    boolean rapid_commit, File reservations_file, List<Reservation> reservations, List<Subnet> subnets,
+	    List<ClientClass> classes) {
+		this.server_ip = server_ip.clone();
+		this.first_ip = first_ip.clone();
+		this.last_ip = last_ip.clone();
+		this.netmask = netmask.clone();
+		this.lease_time = lease_time;
+		this.renewal_time = renewal_time;
+		this.dns_servers = dns_servers.clone();
+		this.excluded = excluded.clone();
+		this.options = options.clone();
+		this.rapid_commit = rapid_commit;
+		
+		// every reply carries the server identifier, offers and acks the
+		// lease time as well, but not the ack to an inform (RFC 2131 table 3)
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encode(out, DHCPOptions.OPTION_NETMASK, this.netmask);
+		encode(out, DHCPOptions.OPTION_DHCP_SERVER_IDENTIFIER, this.server_ip);
+		encode(out, DHCPOptions.OPTION_DNS_SERVERS, this.dns_servers);
+		byte[] inform = OptionCatalog.merge(out.toByteArray(), this.options);
+		
+		encode(out, DHCPOptions.OPTION_DHCP_IP_LEASE_TIME, Tools.intToByte(lease_time));
+		encode(out, DHCPOptions.OPTION_DHCP_RENEWAL_TIME, Tools.intToByte(renewal_time));
+		byte[] ack = OptionCatalog.merge(out.toByteArray(), this.options);
+		byte[] offer = ack;
+		
+		scope = new Scope("global", new int[] {
+		    Tools.byteToInt(first_ip), Tools.byteToInt(last_ip)
+		}, excluded, offer, ack, inform, rapid_commit);
+		
+		this.subnets = Collections.unmodifiableList(new ArrayList<Subnet>(subnets));
+		this.classes = Collections.unmodifiableList(new ArrayList<ClientClass>(classes));
+		
+		networks.put(Tools.byteToInt(server_ip) & Tools.byteToInt(netmask),
+		    Integer.bitCount(Tools.byteToInt(netmask)), 0);
+		for (int i = 0; i < subnets.size(); i++) {
+			Subnet s = subnets.get(i);
+			
+			if (networks.put(Tools.byteToInt(s.getNetwork()), s.getPrefixLength(), i + 1) >= 0)
+				throw new IllegalArgumentException("Network of subnet " + s + " defined twice");
+		}
+		
+		scopes = new Scope[subnets.size() + 1][];
+		scopes[0] = bind(scope, null);
+		for (int i = 0; i < subnets.size(); i++) {
+			scopes[i + 1] = bind(subnets.get(i).bind(scope), subnets.get(i));
+		}
+		matcher = new ClassMatcher(this.classes);
+		
+		this.reservations_file = reservations_file;
+		this.reservations = Collections.unmodifiableList(new ArrayList<Reservation>(reservations));
+		hosts = new HashMap<String, Reservation>(reservations.size() * 2);
+		
+		HashMap<Integer, Reservation> by_ip = new HashMap<Integer, Reservation>();
+		for (Reservation r : reservations) {
+			Reservation other = by_ip.put(Tools.byteToInt(r.getIp()), r);
+			if (other != null)
+				throw new IllegalArgumentException("Ip adress reserved twice: " + r + ", " + other);
+			if (hosts.put(r.getKey(), r.bind(scopes[findHome(r.getIp())][0])) != null)
+				throw new IllegalArgumentException("Host reserved twice: " + r.getKey());
+			
+			for (Scope[] row : scopes) {
+				for (Scope s : row) {
+					s.reserve(r.getIp());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads the <code>global</code> section of the given settings and
+	 * validates it. Missing values are set to their defaults.
+	 * 
+	 * @param settings the configuration to read
+	 * @return the new snapshot
+	 * @throws IllegalArgumentException if a value is invalid, the message
+	 *         describes which one.
+	 */
+	public static ServerConfig fromSettings(IniParser settings) {
+		byte[] first_ip = parseIp("first_ip", settings.getString("global", "first_ip",
+		    "192.168.0.20"));
+		byte[] last_ip = parseIp("last_ip", settings.getString("global", "last_ip",
+		    "192.168.0.254"));
+		byte[] netmask = parseIp("netmask", settings.getString("global", "netmask",
+		    "255.255.255.0"));
+		byte[] server_ip = parseIp("server_ip", settings.getString("global", "server_ip",
+		    "192.168.0.1"));
+		int lease_time = settings.getInt("global", "lease_time", Integer.MAX_VALUE);
+		int renewal_time = settings.getInt("global", "renewal_time",
+		    (int) (Integer.MAX_VALUE * 0.75));
+		
+		if (!Tools.checkIp(first_ip))
+			throw new IllegalArgumentException("Invalid first_ip: " + Tools.byteToIp(first_ip));
+		if (!Tools.checkIp(last_ip))
+			throw new IllegalArgumentException("Invalid last_ip: " + Tools.byteToIp(last_ip));
+		if (Integer.compareUnsigned(Tools.byteToInt(first_ip), Tools.byteToInt(last_ip)) > 0)
+			throw new IllegalArgumentException("first_ip is behind last_ip: "
+			    + Tools.byteToIp(first_ip) + " > " + Tools.byteToIp(last_ip));
+		if (!Tools.checkNetmask(netmask))
+			throw new IllegalArgumentException("Invalid netmask: " + Tools.byteToIp(netmask));
+		if (lease_time <= 0)
+			throw new IllegalArgumentException("Invalid lease_time: " + lease_time);
+		if (renewal_time <= 0 || renewal_time > lease_time)
+			throw new IllegalArgumentException("Invalid renewal_time: " + renewal_time);
+		
+		String exclude = settings.getString("global", "exclude");
+		int[] excluded = new int[0];
+		
+		if (exclude != null) {
+			try {
+				excluded = Scope.parseRanges(exclude);
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid exclude: " + exclude);
+			}
+		}
+		
+		String[] dns = settings.getString("global", "dns_servers", "").trim().split("[ \t]+");
+		ByteArrayOutputStream dns_servers = new ByteArrayOutputStream();
+		
+		for (String ip : dns) {
+			if (ip.length() == 0)
+				continue;
+			
+			byte[] akt = parseIp("dns_servers", ip);
+			if (!Tools.checkIp(akt))
+				throw new IllegalArgumentException("Invalid DNS Server: " + ip);
+			
+			dns_servers.write(akt, 0, 4);
+		}
+		
+		String file = settings.getString("global", "reservations");
+		File reservations_file = null;
+		List<Reservation> reservations = Collections.emptyList();
+		
+		if (file != null && file.trim().length() > 0) {
+			reservations_file = new File(file.trim());
+			
+			try {
+				reservations = Reservation.load(reservations_file);
+			}
+			catch (IOException e) {
+				throw new IllegalArgumentException("Can't read the reservations: " + e);
+			}
+		}
+		
+		byte[] options = OptionCatalog.compile(settings, "options");
+		boolean rapid_commit = Boolean.parseBoolean(settings.getString("global", "rapid_commit"));
+		List<Subnet> subnets = Subnet.fromSettings(settings);
+		List<ClientClass> classes = ClientClass.fromSettings(settings);
+		
+		return new ServerConfig(server_ip, first_ip, last_ip, netmask, lease_time,
+		    renewal_time, dns_servers.toByteArray(), excluded, options, rapid_commit,
+		    reservations_file, reservations, subnets, classes);
+	}
+	
+	/**
+	 * Creates a copy of this configuration with another server ip adress.
+	 * 
+	 * @param server_ip the ip adress of the server
+	 * @return the new configuration
+	 */
+	public ServerConfig withServerIp(byte[] server_ip) {
+		return new ServerConfig(server_ip, first_ip, last_ip, netmask, lease_time, renewal_time,
+		    dns_servers, excluded, options, rapid_commit, reservations_file, reservations, subnets,
+		    classes);
+	}
+	
+	/**
+	 * Creates the scopes of the client classes on one network. A class
+	 * gets its own range only on the network the range belongs to, on the
+	 * other networks it shares their range.
+	 * 
+	 * @param base the scope of the network
+	 * @param subnet the subnet, <code>null</code> for the network the
+	 *        server is attached to
+	 * @return the scope of the network followed by the scopes of the classes
+	 */
+	private Scope[] bind(Scope base, Subnet subnet) {
+		Scope[] back = new Scope[classes.size() + 1];
+		back[0] = base;
+		
+		for (int i = 0; i < classes.size(); i++) {
+			ClientClass c = classes.get(i);
+			int home = c.getFirstIp() == null ? -1 : findNetwork(c.getFirstIp());
+			
+			back[i + 1] = c.bind(base, home <= 0 ? subnet == null
+			    : subnet == subnets.get(home - 1));
+		}
+		
+		return back;
+	}
+	
+	/**
+	 * Finds the network an ip adress belongs to. If networks are nested,
+	 * the smallest one wins.
+	 * 
+	 * @param ip the ip adress
+	 * @return the row in {@link #scopes}, -1 if no network matches
+	 */
+	private int findNetwork(byte[] ip) {
+		return networks.lookup(Tools.byteToInt(ip));
+	}
+	
+	/**
+	 * Finds the network of a reserved adress. An adress outside of all
+	 * networks belongs to the network the server is attached to.
+	 * 
+	 * @param ip the reserved ip adress
+	 * @return the row in {@link #scopes}
+	 */
+	private int findHome(byte[] ip) {
+		return Math.max(findNetwork(ip), 0);
+	}
+	
+	/**
+	 * Parses an ip adress in dotted notation.
+	 * 
+	 * @param name the name of the setting, used in the error message
+	 * @param value the value to parse
+	 * @return the ip adress as 4 bytes
+	 * @throws IllegalArgumentException if the value is no ip adress
+	 */
+	private static byte[] parseIp(String name, String value) {
+		try {
+			return OptionCatalog.parseIp(value);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + value);
+		}
+	}
+	
+	/**
+	 * Appends one option to the given stream. Empty values are skipped.
+	 * 
+	 * @param out the stream to write to
+	 * @param code the option code
+	 * @param value the value of the option
+	 */
+	private static void encode(ByteArrayOutputStream out, int code, byte[] value) {
+		byte[] option = OptionCatalog.encode(code, value);
+		out.write(option, 0, option.length);
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ServerConfig))
+			return false;
+		
+		ServerConfig c = (ServerConfig) o;
+		return Arrays.equals(first_ip, c.first_ip) && Arrays.equals(last_ip, c.last_ip)
+		    && Arrays.equals(excluded, c.excluded) && rapid_commit == c.rapid_commit
+		    && Arrays.equals(scope.getAckOptions().getEncoded(),
+		        c.scope.getAckOptions().getEncoded())
+		    && Arrays.equals(scope.getOfferOptions().getEncoded(),
+		        c.scope.getOfferOptions().getEncoded())
+		    && reservations.equals(c.reservations) && subnets.equals(c.subnets)
+		    && classes.equals(c.classes);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(scope.getAckOptions().getEncoded())
+		    + Arrays.hashCode(scope.getOfferOptions().getEncoded());
+	}
+	
+	/**
+	 * Checks whether the given ip adress is in the range of any scope.
+	 * 
+	 * @param ip the ip adress to check
+	 * @return is the ip adress in a range?
+	 */
+	public boolean inRange(byte[] ip) {
+		for (Scope[] row : scopes) {
+			for (Scope s : row) {
+				if (s.inRange(ip))
+					return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Checks whether the given ip adress is reserved for a host.
+	 * 
+	 * @param ip the ip adress to check
+	 * @return is the ip adress reserved?
+	 */
+	public boolean isReserved(byte[] ip) {
+		for (Scope[] row : scopes) {
+			for (Scope s : row) {
+				if (s.isReserved(ip))
+					return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Selects the scope of a client by the network it is attached to, its
+	 * vendor class identifier and its user class.
+	 * 
+	 * @param link an adress of the network of the client, given by the
+	 *        relay agent. <code>null</code> or 0.0.0.0 if the request was
+	 *        not relayed.
+	 * @param ciaddr the adress of the client, used if the request was not
+	 *        relayed. If it belongs to no subnet, or it is 0.0.0.0, the
+	 *        network the server is attached to is used.
+	 * @param vendor_class the vendor class identifier (option 60), may be
+	 *        <code>null</code>
+	 * @param user_class the user class (option 77), may be <code>null</code>
+	 * @return the scope of the matching class on the network, the scope of
+	 *         the network if no class matches or <code>null</code> if the
+	 *         network is unknown
+	 */
+	public Scope select(byte[] link, byte[] ciaddr, byte[] vendor_class, byte[] user_class) {
+		int row = 0;
+		
+		if (link != null && Tools.byteToInt(link) != 0) {
+			row = findNetwork(link);
+			if (row < 0)
+				return null;
+		}
+		else if (ciaddr != null && Tools.byteToInt(ciaddr) != 0) {
+			row = Math.max(findNetwork(ciaddr), 0);
+		}
+		
+		return scopes[row][matcher.match(vendor_class, user_class) + 1];
+	}
+	
+	/**
+	 * Tells whether the reserved adress of a host belongs to the network of
+	 * the given scope. A host which asks on another network must not get
+	 * its adress there.
+	 * 
+	 * @param host the reservation of the host
+	 * @param scope the scope selected for the request of the host
+	 * @return <code>true</code> if the scope is one of the network of the
+	 *         reserved adress
+	 */
+	public boolean isHome(Reservation host, Scope scope) {
+		for (Scope s : scopes[findHome(host.getIp())]) {
+			if (s == scope)
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return the scope of clients without a class
+	 */
+	public Scope getScope() {
+		return scope;
+	}
+	
+	/**
+	 * @return the networks reached through relay agents, ordered by name
+	 */
+	public List<Subnet> getSubnets() {
+		return subnets;
+	}
+	
+	/**
+	 * @return the client classes ordered by name
+	 */
+	public List<ClientClass> getClasses() {
+		return classes;
+	}
+	
+	/**
+	 * Looks up the reservation of a host.
+	 * 
+	 * @param key the mac adress or the client identifier
+	 * @return the reservation or <code>null</code> if the host has none
+	 * @see Reservation#clientId(byte[])
+	 */
+	public Reservation getReservation(String key) {
+		return hosts.get(key);
+	}
+	
+	/**
+	 * @return the reservations in the order of the file
+	 */
+	public List<Reservation> getReservations() {
+		return reservations;
+	}
+	
+	/**
+	 * @return the file the reservations were read from, <code>null</code>
+	 *         if none is configured
+	 */
+	public File getReservationsFile() {
+		return reservations_file;
+	}
+	
+	/**
+	 * @return the ip adress of the server
+	 */
+	public byte[] getServerIp() {
+		return server_ip.clone();
+	}
+	
+	/**
+	 * @return the first ip adress to offer
+	 */
+	public byte[] getFirstIp() {
+		return first_ip.clone();
+	}
+	
+	/**
+	 * @return the last ip adress to offer
+	 */
+	public byte[] getLastIp() {
+		return last_ip.clone();
+	}
+	
+	/**
+	 * @return the netmask to announce
+	 */
+	public byte[] getNetmask() {
+		return netmask.clone();
+	}
+	
+	/**
+	 * @return the lease time in seconds
+	 */
+	public int getLeaseTime() {
+		return lease_time;
+	}
+	
+	/**
+	 * @return the renewal time in seconds
+	 */
+	public int getRenewalTime() {
+		return renewal_time;
+	}
+	
+	/**
+	 * @return the dns servers to announce, 4 bytes each
+	 */
+	public byte[] getDNSServers() {
+		return dns_servers.clone();
+	}
+}
@@ -0,0 +1,295 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * A network which is not attached to the server but reached through a
+ * relay agent. The server picks the subnet of a request by the adress of
+ * the relay (giaddr), the link selection the relay sends or the adress of
+ * a renewing client (ciaddr). It is configured in a section named
+ * <code>subnet &lt;name&gt;</code>:
+ * 
+ * <pre>
+ * [subnet office]
+ * network=10.1.0.0
+ * netmask=255.255.255.0
+ * first_ip=10.1.0.20
+ * last_ip=10.1.0.100
+ * ranges=10.1.0.150-10.1.0.200
+ * exclude=10.1.0.50, 10.1.0.160-10.1.0.169
+ * routers=10.1.0.1
+ * rapid_commit=true
+ * </pre>
+ * 
+ * The pool consists of the range from <code>first_ip</code> to
+ * <code>last_ip</code> and the <code>ranges</code>, the excluded adresses
+ * are never offered. <code>rapid_commit</code> overrides the setting of
+ * the <code>global</code> section. All other keys are options as in the
+ * <code>options</code> section.
+ * 
+ * @author sfrankenberger
+ */
+public final class Subnet {
+	/**
+	 * The prefix of the sections defining a subnet
+	 */
+	public static final String SECTION_PREFIX = "subnet ";
+	
+	/**
+	 * The keys of a section which are no options
+	 */
+	private static final List<String> KEYS = Arrays.asList("network", "netmask", "first_ip",
+	    "last_ip", "ranges", "exclude", "rapid_commit");
+	
+	/**
+	 * The name of the subnet
+	 */
+	private final String name;
+	
+	/**
+	 * The adress of the network
+	 */
+	private final byte[] network;
+	
+	/**
+	 * The netmask of the network
+	 */
+	private final byte[] netmask;
+	
+	/**
+	 * The ranges of the pool, first and last adress of each range, sorted
+	 */
+	private final int[] ranges;
+	
+	/**
+	 * The excluded ranges, first and last adress of each range, sorted
+	 */
+	private final int[] excluded;
+	
+	/**
+	 * The encoded options of this subnet
+	 */
+	private final byte[] options;
+	
+	/**
+	 * Answer with rapid commit, <code>null</code> to use the global setting
+	 */
+	private final Boolean rapid_commit;
+	
+	/**
+	 * Creates a new subnet. The arrays are copied.
+	 * 
+	 * @param name the name of the subnet
+	 * @param network the adress of the network
+	 * @param netmask the netmask of the network
+	 * @param ranges the ranges of the pool, as returned by
+	 *        {@link Scope#parseRanges(String)}
+	 * @param excluded the excluded adresses, as returned by
+	 *        {@link Scope#parseRanges(String)}
+	 * @param options the encoded options, they replace the global options
+	 *        with the same code
+	 * @param rapid_commit answer with rapid commit, <code>null</code> to use
+	 *        the global setting
+	 * @throws IllegalArgumentException if there is no range or a range is
+	 *         not inside the network
+	 */
+	public Subnet(String name, byte[] network, byte[] netmask, int[] ranges, int[] excluded,
+	    byte[] options, Boolean rapid_commit) {
+		this.name = name;
+		this.network = network.clone();
+		this.netmask = netmask.clone();
+		this.ranges = ranges.clone();
+		this.excluded = excluded.clone();
+		this.options = options.clone();
+		this.rapid_commit = rapid_commit;
+		
+		if ((Tools.byteToInt(network) & ~Tools.byteToInt(netmask)) != 0)
+			throw new IllegalArgumentException("Subnet " + name + ": network "
+			    + Tools.byteToIp(network) + " doesn't match the netmask");
+		if (ranges.length == 0)
+			throw new IllegalArgumentException("Subnet " + name + " has no range");
+		
+		for (int i = 0; i < ranges.length; i++) {
+			if (!contains(Tools.intToByte(ranges[i])))
+				throw new IllegalArgumentException("Subnet " + name + ": "
+				    + Tools.byteToIp(Tools.intToByte(ranges[i])) + " is not in the network");
+		}
+	}
+	
+	/**
+	 * Reads all sections named <code>subnet &lt;name&gt;</code>.
+	 * 
+	 * @param settings the configuration to read
+	 * @return the subnets ordered by name
+	 * @throws IllegalArgumentException if a subnet is invalid, the message
+	 *         describes which one.
+	 */
+	public static List<Subnet> fromSettings(IniParser settings) {
+		List<Subnet> back = new ArrayList<Subnet>();
+		
+		for (String section : settings.getSections()) {
+			if (!section.startsWith(SECTION_PREFIX))
+				continue;
+			
+			String name = section.substring(SECTION_PREFIX.length()).trim();
+			byte[] netmask = parseIp(name, settings, section, "netmask");
+			
+			if (!Tools.checkNetmask(netmask))
+				throw new IllegalArgumentException("Subnet " + name + ": invalid netmask "
+				    + Tools.byteToIp(netmask));
+			
+			String ranges = settings.getString(section, "ranges");
+			if (ranges == null) {
+				ranges = "";
+			}
+			
+			if (settings.getString(section, "first_ip") != null
+			    || settings.getString(section, "last_ip") != null) {
+				ranges = Tools.byteToIp(parseIp(name, settings, section, "first_ip")) + "-"
+				    + Tools.byteToIp(parseIp(name, settings, section, "last_ip")) + "," + ranges;
+			}
+			
+			String rapid_commit = settings.getString(section, "rapid_commit");
+			
+			byte[] options = OptionCatalog.compile(settings, section, KEYS);
+			back.add(new Subnet(name, parseIp(name, settings, section, "network"), netmask,
+			    parseRanges(name, "ranges", ranges),
+			    parseRanges(name, "exclude", settings.getString(section, "exclude")), options,
+			    rapid_commit == null ? null : Boolean.valueOf(rapid_commit.trim())));
+		}
+		
+		return back;
+	}
+	
+	private static byte[] parseIp(String name, IniParser settings, String section, String key) {
+		String value = settings.getString(section, key);
+		
+		if (value == null)
+			throw new IllegalArgumentException("Subnet " + name + " needs " + key);
+		
+		try {
+			return OptionCatalog.parseIp(value);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Subnet " + name + ": invalid " + key + " "
+			    + value);
+		}
+	}
+	
+	private static int[] parseRanges(String name, String key, String value) {
+		if (value == null)
+			return new int[0];
+		
+		try {
+			return Scope.parseRanges(value);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Subnet " + name + ": invalid " + key + " "
+			    + value);
+		}
+	}
+	
+	/**
+	 * Checks whether the given ip adress belongs to this network.
+	 * 
+	 * @param ip the ip adress to check
+	 * @return is the ip adress in this network?
+	 */
+	public boolean contains(byte[] ip) {
+		int mask = Tools.byteToInt(netmask);
+		
+		return (Tools.byteToInt(ip) & mask) == Tools.byteToInt(network);
+	}
+	
+	/**
+	 * Creates the scope of this subnet. The options of the given scope are
+	 * used where this subnet sets none, the netmask is the one of this
+	 * subnet. The same goes for rapid commit.
+	 * 
+	 * @param global the scope of the network the server is attached to
+	 * @return the scope of this subnet
+	 */
+	Scope bind(Scope global) {
+		byte[] own = OptionCatalog.merge(OptionCatalog.encode(DHCPOptions.OPTION_NETMASK, netmask),
+		    options);
+		
+		return new Scope(name, ranges, excluded,
+		    OptionCatalog.merge(global.getOfferOptions().getEncoded(), own),
+		    OptionCatalog.merge(global.getAckOptions().getEncoded(), own),
+		    OptionCatalog.merge(global.getInformOptions().getEncoded(), own),
+		    rapid_commit == null ? global.isRapidCommit() : rapid_commit);
+	}
+	
+	/**
+	 * @return the name of the subnet
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return the adress of the network
+	 */
+	public byte[] getNetwork() {
+		return network.clone();
+	}
+	
+	/**
+	 * @return the netmask of the network
+	 */
+	public byte[] getNetmask() {
+		return netmask.clone();
+	}
+	
+	/**
+	 * @return the number of bits of the netmask
+	 */
+	public int getPrefixLength() {
+		return Integer.bitCount(Tools.byteToInt(netmask));
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Subnet))
+			return false;
+		
+		Subnet s = (Subnet) o;
+		return name.equals(s.name) && Arrays.equals(network, s.network)
+		    && Arrays.equals(netmask, s.netmask) && Arrays.equals(ranges, s.ranges)
+		    && Arrays.equals(excluded, s.excluded) && Arrays.equals(options, s.options)
+		    && Objects.equals(rapid_commit, s.rapid_commit);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * name.hashCode() + Arrays.hashCode(network);
+	}
+	
+	@Override
+	public String toString() {
+		return name + " (" + Tools.byteToIp(network) + "/" + Tools.byteToIp(netmask) + ")";
+	}
+}
@@ -0,0 +1,60 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+
+/**
+ * The way the server receives requests and sends replies. Decouples the
+ * {@link Server} from the udp socket, so the server can also be driven
+ * from memory, e.g. to replay captured traffic or for benchmarks.
+ * 
+ * @author sfrankenberger
+ */
+public interface Transport {
+	/**
+	 * Waits for the next message. Implementations return after a short
+	 * timeout (about one second), so the server can check whether it
+	 * should stop.
+	 * 
+	 * @param m the message to read the request into
+	 * @return <code>true</code> if a message was received,
+	 *         <code>false</code> if a timeout occured.
+	 */
+	public boolean receive(DHCPMessage m);
+	
+	/**
+	 * Sends an encoded message.
+	 * 
+	 * @param data the encoded message
+	 * @param length the number of bytes to send
+	 * @param address the receiver of the message
+	 * @param port the port of the receiver
+	 * @throws IOException If the message could not be sent.
+	 */
+	public void send(byte[] data, int length, InetAddress address, int port) throws IOException;
+	
+	/**
+	 * Closes this transport and releases all resources.
+	 */
+	public void close();
+}
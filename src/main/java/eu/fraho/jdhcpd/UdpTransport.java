@@ -0,0 +1,113 @@
+package eu.fraho.jdhcpd;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.DHCPSocket;
+import eu.fraho.jdhcpd.jfr.DecodeEvent;
+import eu.fraho.jdhcpd.jfr.ReceiveEvent;
+import eu.fraho.jdhcpd.jfr.SendEvent;
+
+/**
+ * Transport using a {@link DHCPSocket}, which is a plain
+ * {@link java.net.DatagramSocket}. This is the default transport of
+ * the server.
+ * 
+ * @author sfrankenberger
+ */
+public class UdpTransport implements Transport {
+	/**
+	 * The socket to send and receive the messages
+	 */
+	private DHCPSocket socket;
+	
+	/**
+	 * Optional capture of all sent and received datagrams
+	 */
+	private final PacketCapture capture;
+	
+	/**
+	 * Creates a new transport using the given socket.
+	 * 
+	 * @param socket the (already bound) socket to use
+	 * @param capture the capture to copy all datagrams to, may be
+	 *                <code>null</code>
+	 */
+	public UdpTransport(DHCPSocket socket, PacketCapture capture) {
+		this.socket = socket;
+		this.capture = capture;
+	}
+	
+	@Override
+	public synchronized boolean receive(DHCPMessage m) {
+		try {
+			DatagramPacket incoming = new DatagramPacket(new byte[socket.getMTU()],
+			    socket.getMTU());
+			socket.receive(incoming); // block on receive for the socket timeout
+			
+			// read to dispatch, the wait for the datagram is not measured
+			ReceiveEvent received = new ReceiveEvent();
+			received.begin();
+			
+			if (capture != null) {
+				capture.inbound(incoming.getData(), incoming.getOffset(), incoming.getLength(),
+				    incoming.getAddress(), incoming.getPort(), socket.getLocalAddress(),
+				    socket.getLocalPort());
+			}
+			
+			DecodeEvent decode = new DecodeEvent();
+			decode.begin();
+			m.internalize(incoming.getData());
+			decode.complete(m);
+			
+			received.size = incoming.getLength();
+			received.complete(incoming.getData(), incoming.getOffset(), incoming.getLength());
+		}
+		catch (IOException e) {
+			return false;
+		}
+		
+		return true;
+	}
+	
+	@Override
+	public void send(byte[] data, int length, InetAddress address, int port) throws IOException {
+		SendEvent event = new SendEvent();
+		event.begin();
+		
+		socket.send(new DatagramPacket(data, length, address, port));
+		
+		if (capture != null) {
+			capture.outbound(data, 0, length, address, port, socket.getLocalAddress(),
+			    socket.getLocalPort());
+		}
+		
+		event.size = length;
+		event.complete(data, 0, length);
+	}
+	
+	@Override
+	public void close() {
+		socket.close();
+	}
+}
@@ -0,0 +1,62 @@
+package eu.fraho.jdhcpd.jfr;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import eu.fraho.jdhcpd.Tools;
+
+/**
+ * Spans the search for a free ip adress for a client.
+ * 
+ * @author sfrankenberger
+ */
+@Name("eu.fraho.jdhcpd.Allocation")
+@Label("Address Allocation")
+@Description("Search for a free ip adress")
+public class AllocationEvent extends PacketEvent {
+	@Label("Address")
+	@Description("The allocated ip adress, empty if the pool is exhausted")
+	public String address;
+	
+	/**
+	 * The allocated adress, only formatted if the event is committed
+	 */
+	private transient byte[] ip;
+	
+	/**
+	 * Ends this event and commits it.
+	 * 
+	 * @param m the message which asked for an adress
+	 * @param ip the allocated ip adress
+	 */
+	public void complete(DHCPMessage m, byte[] ip) {
+		this.ip = ip;
+		complete(m);
+	}
+	
+	@Override
+	protected void describe() {
+		if (ip != null && ip[0] != 0)
+			address = Tools.byteToIp(ip);
+	}
+}
@@ -0,0 +1,37 @@
+package eu.fraho.jdhcpd.jfr;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Spans the lookup of an existing lease for a client.
+ * 
+ * @author sfrankenberger
+ */
+@Name("eu.fraho.jdhcpd.LeaseLookup")
+@Label("Lease Lookup")
+@Description("Lookup of an existing lease for the client")
+public class LeaseLookupEvent extends PacketEvent {
+	@Label("Found")
+	@Description("Whether the client already had a lease")
+	public boolean found;
+}
@@ -0,0 +1,163 @@
+package eu.fraho.jdhcpd.jfr;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.DHCPOptions;
+
+/**
+ * Base class of all flight recorder events emitted while a single dhcp
+ * packet travels through the server. Every event carries the transaction
+ * id, the message type and a hash of the client hardware adress, so the
+ * stages of one exchange can be correlated in JMC.<br>
+ * <br>
+ * The fields are only filled in if the event is going to be committed, so
+ * the cost is a single check while no recording is running.
+ * 
+ * @author sfrankenberger
+ */
+@Category({ "JDHCPD", "Packet" })
+@StackTrace(false)
+public abstract class PacketEvent extends Event {
+	/**
+	 * Offset of the options (including the magic cookie) in a raw message
+	 */
+	private static final int OPTIONS_OFFSET = 236;
+	
+	@Label("Transaction ID")
+	@Description("The xid of the dhcp message")
+	protected int xid;
+	
+	@Label("Message Type")
+	@Description("The dhcp message type (option 53), 0 if not present")
+	protected byte messageType;
+	
+	@Label("Client Hardware Address Hash")
+	@Description("Hash of the chaddr field, used to correlate the events of one client")
+	protected int chaddrHash;
+	
+	/**
+	 * Ends this event and commits it, describing the given message.
+	 * 
+	 * @param m the message this event belongs to
+	 */
+	public void complete(DHCPMessage m) {
+		end();
+		
+		if (shouldCommit()) {
+			xid = m.getXid();
+			
+			byte[] type = m.getOption(DHCPOptions.OPTION_DHCP_MESSAGE_TYPE);
+			if (type != null && type.length > 0) {
+				messageType = type[0];
+			}
+			
+			chaddrHash = hash(m.getChaddr(), 0, m.getHlen());
+			describe();
+			commit();
+		}
+	}
+	
+	/**
+	 * Ends this event and commits it, describing the given raw message.
+	 * Used by the socket layer where no parsed message is available.
+	 * 
+	 * @param data the raw dhcp message
+	 * @param offset where the message starts in <code>data</code>
+	 * @param length the length of the message
+	 */
+	public void complete(byte[] data, int offset, int length) {
+		end();
+		
+		if (shouldCommit()) {
+			if (length >= OPTIONS_OFFSET) {
+				xid = ((0xFF & data[offset + 4]) << 24) | ((0xFF & data[offset + 5]) << 16)
+				    | ((0xFF & data[offset + 6]) << 8) | (0xFF & data[offset + 7]);
+				chaddrHash = hash(data, offset + 28, data[offset + 2]);
+				messageType = findMessageType(data, offset, length);
+			}
+			
+			describe();
+			commit();
+		}
+	}
+	
+	/**
+	 * Called right before the event is committed. Subclasses may override
+	 * this to fill in fields which are expensive to compute.
+	 */
+	protected void describe() {
+	}
+	
+	/**
+	 * Hashes the given client hardware adress.
+	 * 
+	 * @param b the buffer containing the adress
+	 * @param offset where the adress starts
+	 * @param hlen the length of the adress, clamped to 16 bytes
+	 * @return a hash of the adress
+	 */
+	private static int hash(byte[] b, int offset, int hlen) {
+		if (hlen <= 0 || hlen > 16)
+			hlen = 16;
+		
+		int h = 1;
+		for (int i = 0; i < hlen; i++) {
+			h = 31 * h + b[offset + i];
+		}
+		
+		return h;
+	}
+	
+	/**
+	 * Walks the options of a raw message and returns the message type.
+	 * 
+	 * @param data the raw dhcp message
+	 * @param offset where the message starts in <code>data</code>
+	 * @param length the length of the message
+	 * @return the message type or 0 if it is not present
+	 */
+	private static byte findMessageType(byte[] data, int offset, int length) {
+		int pos = offset + OPTIONS_OFFSET + 4; // skip magic cookie
+		int end = offset + length;
+		
+		while (pos < end) {
+			int code = 0xFF & data[pos++];
+			
+			if (code == DHCPOptions.OPTION_PAD)
+				continue;
+			if (code == DHCPOptions.OPTION_END || pos >= end)
+				break;
+			
+			int len = 0xFF & data[pos++];
+			if (code == DHCPOptions.OPTION_DHCP_MESSAGE_TYPE && len > 0 && pos < end)
+				return data[pos];
+			
+			pos += len;
+		}
+		
+		return 0;
+	}
+}
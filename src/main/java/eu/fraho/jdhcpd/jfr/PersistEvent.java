@@ -0,0 +1,51 @@
+package eu.fraho.jdhcpd.jfr;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Spans the saving or loading of the lease table. Not bound to a single
+ * packet, so it does not extend {@link PacketEvent}.
+ * 
+ * @author sfrankenberger
+ */
+@Name("eu.fraho.jdhcpd.Persist")
+@Label("Leases Persisted")
+@Description("Saving or loading of the lease table")
+@Category({ "JDHCPD", "Leases" })
+@StackTrace(false)
+public class PersistEvent extends Event {
+	@Label("Operation")
+	@Description("Either save or load")
+	public String operation;
+	
+	@Label("File")
+	@Description("The file the leases were written to or read from")
+	public String file;
+	
+	@Label("Leases")
+	@Description("Number of leases written or read")
+	public int leases;
+}
@@ -0,0 +1,39 @@
+package eu.fraho.jdhcpd.jfr;
+
+/*
+JDHCP is a simple to configure and to use DHCP Server.
+Copyright (C) 2010  Simon Frankenberger
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Spans the time the socket layer needs to send a datagram.
+ * 
+ * @author sfrankenberger
+ */
+@Name("eu.fraho.jdhcpd.Send")
+@Label("Packet Sent")
+@Description("Sending of a datagram by the socket layer")
+public class SendEvent extends PacketEvent {
+	@Label("Size")
+	@Description("Size of the sent datagram")
+	@DataAmount
+	public int size;
+}